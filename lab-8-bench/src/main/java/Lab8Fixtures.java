@@ -0,0 +1,85 @@
+import lab8.bench.IntersectionFixture;
+
+// Fixed, seeded ray sets for the JMH benchmarks in lab8.bench. This class sits in the default package
+// next to the Lab8 sources so it can reach Lab8's package-private nested classes.
+public class Lab8Fixtures {
+    // rays: "hit" aims every ray at a point inside the shape, "miss" points every ray away from it
+    public static IntersectionFixture shape(String shape, String rays, int count) {
+        Lab8.Material m = new Lab8.Material();
+        Lab8.Shape s;
+        switch (shape) {
+            case "sphere": s = new Lab8.Sphere(new Lab8.Vec3(0, 0, 0), 1.0, m); break;
+            case "plane": s = new Lab8.Plane(new Lab8.Vec3(0, 1, 0), 0.0, m); break;
+            case "box": s = new Lab8.Box(new Lab8.Vec3(-1, -1, -1), new Lab8.Vec3(1, 1, 1), m); break;
+            case "cylinder": s = new Lab8.Cylinder(new Lab8.Vec3(0, -1, 0), 1.0, 0.0, 2.0, m); break;
+            case "cone": s = new Lab8.Cone(new Lab8.Vec3(0, -1, 0), 1.0, 2.0, m); break;
+            case "mesh": s = Lab8.TriangleMesh.sphere(new Lab8.Vec3(0, 0, 0), 1.0, 128, 256, m); break; // 65k triangles
+            case "instance": s = Lab8.Instance.place(Lab8.TriangleMesh.sphere(new Lab8.Vec3(0, 0, 0), 1.0, 128, 256, m), 0, 0, 0, 0.5, 1.0); break;
+            default: throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        Lab8.Ray[] set = new Lab8.Ray[count];
+        java.util.Random rng = new java.util.Random(42);
+        for (int i = 0; i < count; i++) {
+            // Origins on the upper half of a sphere of radius 6, so every shape (including the y=0 plane) is below them
+            double theta = 2.0 * Math.PI * rng.nextDouble();
+            double y = 1.0 + 4.0 * rng.nextDouble();
+            double rxz = Math.sqrt(36.0 - y * y);
+            Lab8.Vec3 o = new Lab8.Vec3(rxz * Math.cos(theta), y, rxz * Math.sin(theta));
+            Lab8.Vec3 dir;
+            if (rays.equals("hit")) {
+                // Targets near the common axis lie inside all seven shapes
+                Lab8.Vec3 target = new Lab8.Vec3(0.3 * rng.nextDouble() - 0.15, -0.5 + 1.3 * rng.nextDouble(), 0.3 * rng.nextDouble() - 0.15);
+                dir = target.sub(o);
+            } else if (rays.equals("miss")) {
+                dir = o.add(new Lab8.Vec3(rng.nextDouble() - 0.5, rng.nextDouble(), rng.nextDouble() - 0.5));
+            } else {
+                throw new IllegalArgumentException("Unknown ray set " + rays);
+            }
+            set[i] = new Lab8.Ray(o, dir);
+        }
+        // The shape is compiled into a scene of its own and tested by id, so spheres, boxes and planes run the
+        // scene's array kernels the renderer uses rather than their Shape objects
+        Lab8.Scene scene = new Lab8.Scene();
+        scene.shapes.add(s);
+        scene.build();
+        Lab8.Hit hit = new Lab8.Hit();
+        Lab8.TraceContext ctx = new Lab8.TraceContext();
+        return ray -> scene.intersectId(0, set[ray], 1e-4, 1.0E9, hit, ctx);
+    }
+
+    // query: "intersect" runs closest-hit on primary rays of the default view, "occluded" runs
+    // shadow rays from the primary hit points towards the first light
+    public static IntersectionFixture scene(String query, int count) {
+        Lab8 view = Lab8.headlessView(640, 360);
+        Lab8.Scene scene = view.scene();
+        Lab8.TraceContext ctx = new Lab8.TraceContext();
+        int side = (int) Math.ceil(Math.sqrt(count));
+        Lab8.Ray[] primary = new Lab8.Ray[count];
+        for (int i = 0; i < count; i++) {
+            primary[i] = new Lab8.Ray();
+            view.camera().generateRay(((i % side) + 0.5) / side, ((i / side) + 0.5) / side, primary[i]);
+        }
+        Lab8.Hit hit = new Lab8.Hit();
+        switch (query) {
+            case "intersect":
+                return ray -> scene.intersect(primary[ray], hit, ctx);
+            case "occluded": {
+                Lab8.Light light = scene.lights.get(0);
+                Lab8.Ray[] shadow = new Lab8.Ray[count];
+                double[] dist = new double[count];
+                for (int i = 0, src = 0; i < count; src++) {
+                    if (src >= 4 * count) throw new IllegalStateException("Too few primary hits for shadow rays");
+                    if (!scene.intersect(primary[src % count], hit, ctx)) continue;
+                    Lab8.Vec3 p = hit.position.add(hit.normal.mul(1e-4));
+                    Lab8.Vec3 toLight = light.position.sub(p);
+                    dist[i] = toLight.length() - 2e-4;
+                    shadow[i] = new Lab8.Ray(p, toLight);
+                    i++;
+                }
+                return ray -> scene.occluded(shadow[ray], dist[ray], ctx);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown scene query " + query);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package lab8.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Accepts the usual JMH command line and always attaches the GC profiler, so every result reports
+// gc.alloc.rate.norm (bytes per ray) next to ns/op
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        Options opts = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build();
+        Runner runner = new Runner(opts);
+        if (cmd.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
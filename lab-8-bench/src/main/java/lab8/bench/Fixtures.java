@@ -0,0 +1,27 @@
+package lab8.bench;
+
+import java.lang.reflect.Method;
+
+// Looks up the default-package fixture factory once per trial, outside of the measured code
+final class Fixtures {
+    static final int RAYS = 1024;
+
+    private Fixtures() {}
+
+    static IntersectionFixture shape(String shape, String rays) {
+        return create("shape", new Class<?>[] {String.class, String.class, int.class}, shape, rays, RAYS);
+    }
+
+    static IntersectionFixture scene(String query) {
+        return create("scene", new Class<?>[] {String.class, int.class}, query, RAYS);
+    }
+
+    private static IntersectionFixture create(String factory, Class<?>[] parameters, Object... args) {
+        try {
+            Method m = Class.forName("Lab8Fixtures").getMethod(factory, parameters);
+            return (IntersectionFixture) m.invoke(null, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create fixture " + factory + "/" + args[0], e);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package lab8.bench;
+
+// One intersection kernel bound to a fixed ray set. Implementations live in the default package
+// (see Lab8Fixtures) because Lab8's classes cannot be imported from a named package.
+@FunctionalInterface
+public interface IntersectionFixture {
+    // Runs the kernel for ray i of the set and returns whether it hit
+    boolean run(int ray);
+}
@@ -0,0 +1,31 @@
+package lab8.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Scene.intersect() on primary rays of the default view and Scene.occluded() on shadow rays from their hit points
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SceneQueryBenchmark {
+    @Param({"intersect", "occluded"})
+    String query;
+
+    private IntersectionFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = Fixtures.scene(query);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.RAYS)
+    public int query() {
+        int hits = 0;
+        for (int i = 0; i < Fixtures.RAYS; i++) if (fixture.run(i)) hits++;
+        return hits;
+    }
+}
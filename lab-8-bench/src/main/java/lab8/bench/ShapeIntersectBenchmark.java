@@ -0,0 +1,35 @@
+package lab8.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Cost of testing one shape per ray as Scene does it (compiled array kernels for sphere, plane and box, the
+// object's intersect() for the rest), for rays that mostly hit and rays that all miss
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShapeIntersectBenchmark {
+    @Param({"sphere", "plane", "box", "cylinder", "cone", "mesh", "instance"})
+    String shape;
+
+    @Param({"hit", "miss"})
+    String rays;
+
+    private IntersectionFixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = Fixtures.shape(shape, rays);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.RAYS)
+    public int intersect() {
+        int hits = 0;
+        for (int i = 0; i < Fixtures.RAYS; i++) if (fixture.run(i)) hits++;
+        return hits;
+    }
+}
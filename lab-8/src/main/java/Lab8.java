@@ -1,15 +1,45 @@
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL15.glMapBuffer;
+import static org.lwjgl.opengl.GL15.glUnmapBuffer;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.GL_MAP_INVALIDATE_BUFFER_BIT;
+import static org.lwjgl.opengl.GL30.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.DoubleBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 
 public class Lab8 {
     // Window and image buffers
@@ -23,18 +53,48 @@ public class Lab8 {
     private int imgWidth = baseWidth;
     private int imgHeight = baseHeight;
     private ByteBuffer pixelBuffer; // RGBA8
+    private IntBuffer pixelInts;    // pixelBuffer as one little-endian int per pixel, so a pixel is a single store
     private int screenTex;
 
+    // Texture upload: storage is reallocated only when the size changes, and frames go through two pixel buffer
+    // objects in turn, so copying frame N+1 never waits for the driver to finish transferring frame N. A frame
+    // the renderer has not written since the last upload is not sent again.
+    private final int[] uploadPbos = new int[2];
+    private final int[] uploadPboBytes = new int[2]; // storage size of each slot, 0 before the first upload
+    private boolean pboUpload = false; // GL 2.1 available; otherwise frames are uploaded from client memory
+    private boolean mapRange = false;  // GL 3.0: slots are mapped with their old contents invalidated
+    private int uploadSlot = 0;
+    private int texWidth = 0, texHeight = 0;
+    private ByteBuffer mappedPbo;      // reused wrapper for the mapped slot
+    private FrameImage uploadedFrame;  // frame in the texture and its write count at the time
+    private long uploadedWrites;
+
     // Scene
-    private final Scene scene = new Scene();
+    private Scene scene;
+    private boolean highlightScene; // the view shows setupHighlightScene() instead of setupScene()
     private final Camera camera = new Camera();
 
+    // Quality settings; preview mode uses the reduced values, which the governor picks
+    private int maxDepth = 5, previewMaxDepth = 3;
+    private boolean pathTracing = false; // path tracer instead of the branching Whitted tracer
+    private static final int PATH_MAX_BOUNCES = 32, RR_START_BOUNCE = 3;
+    private int pathMaxBounces = PATH_MAX_BOUNCES; // the path tracer's cap outside preview; --depth sets it in path mode
+    private int shadowSamples = 8, previewShadowSamples = 4;
+    private int glossySamples = 4, previewGlossySamples = 2;
+
     // Controls
     private boolean softShadows = true;
+    private boolean denoise = true;        // edge-aware filter between rendering and upload
+    private double denoiseNanosPerPixel;   // cost of the last denoise, to tell whether one fits a preview frame
+    private boolean misSampling = true;    // area lights: combine disk and BRDF samples with multiple importance sampling
+    private boolean penumbraProbes = true; // area lights: probe the disk first, full shadow samples only in penumbrae
     private boolean animate = false;
+    private double animationTime = 0.0; // seconds of animation; the renderer moves shapes when its copy differs
+    private boolean refitBvh = true;    // animated shapes refit the BVH instead of rebuilding it every frame
     private boolean dirty = true; // re-render needed
     private boolean preview = false; // low-quality interactive mode
     private long lastInteractMs = 0;
+    private final QualityGovernor governor = new QualityGovernor(); // preview quality from measured frame times
 
     // Camera navigation
     private double yaw = 0.0;   // degrees, Y-up
@@ -49,7 +109,71 @@ public class Lab8 {
     private boolean isFullscreen = false;
     private int prevX = 100, prevY = 100, prevW = winWidth, prevH = winHeight;
 
+    // Parallel rendering: the image is split into square tiles that are rendered on a work-stealing pool. The
+    // interactive view owns renderPool (run() creates and shuts it down); headless renders bring their own pool.
+    private static final int TILE_SIZE = 32;
+    private ForkJoinPool renderPool;
+    private long renderSeed = 1337L; // every pixel derives its sample sequences from this
+    private SamplerKind samplerKind = SamplerKind.SOBOL;
+    private static final ThreadLocal<TraceContext> TRACE_CONTEXT = ThreadLocal.withInitial(TraceContext::new);
+
+    // Progressive refinement: while nothing changes, each frame adds one jittered pass to a running sum
+    private static final int MAX_ACCUM_PASSES = 256;
+    private boolean progressive = true;
+    private boolean coarseToFine = true;     // pass 0 traces every 4th pixel first, then the 2x2 and 1x1 levels
+    private static final int COARSEST_STEP = 4;
+    private float[] accumBuffer; // linear RGB sums, 3 per pixel
+    private int accumPasses = 0;  // passes in accumBuffer; 0 means the next pass overwrites it
+    private int[] sampleCounts;   // samples summed in accumBuffer, per pixel
+    private float[] lumSquares;   // sum of squared sample luminance per pixel, for the variance estimate
+    private long totalSamples;    // samples in accumBuffer over all pixels
+
+    // Adaptive sampling: after the first pass, refinement passes only revisit pixels whose error estimate is too high
+    private static final int MAX_EXTRA_SAMPLES = 4; // per pixel and pass
+    private boolean adaptive = false;
+    private double adaptiveBudget = 8.0;     // average samples per pixel, including the first pass
+    private double adaptiveThreshold = 0.02; // error estimate below which a pixel is left alone
+    private byte[] extraSamples;             // samples each pixel receives in the current adaptive pass
+    private float[] displayLum;              // scratch for the contrast estimate
+    private long[] refineOrder;              // scratch for ranking pixels by error when over budget
+    private boolean refinementDone = false;  // adaptive passes found nothing left to refine
+    private Denoiser denoiser;               // feature buffers and filter state, sized with accumBuffer
+    private boolean heatmap = false;         // record render time per pixel and show it in false colour instead
+    private CostMap costMap;                 // per-pixel time since pass 0, sized with accumBuffer
+
+    // Temporal reprojection: while only the camera moves, pass 0 starts from the previous frame warped into the new
+    // view and traces fresh rays only for disocclusions plus a rotating 1/REFRESH_PERIOD of the pixels
+    private static final int REFRESH_PERIOD = 8;
+    private boolean temporal = true;
+    private boolean cameraMoved = false;   // navigation since the last frame (kept apart from dirty)
+    private boolean reprojectNext = false; // next pass 0 may reuse the previous frame
+    private Reprojection reprojection;     // history buffers, sized with accumBuffer
+    private RenderStats stats = new RenderStats(); // rays, traversal work and stage times; shared with the renderer
+    private boolean statsLine = false;               // print RenderStats deltas every STATS_INTERVAL_MS
+    private static final long STATS_INTERVAL_MS = 2000;
+    private long statsShownMs;
+    private long[] statsShown;
+
+    // Asynchronous rendering: jobs run on renderThread against renderer, a second instance that shares the scene's
+    // shapes and receives a RenderSnapshot of this one's camera, lights and settings. The GL thread only submits,
+    // cancels and presents. Only the view has a renderThread, created in run() like renderPool.
+    private ExecutorService renderThread;
+    private Lab8 renderer;
+    private RenderJob renderJob;               // latest submitted job
+    private boolean presentPending = false;    // renderer output not yet uploaded in full
+    private volatile FrameImage shownFrame;    // renderer side: the buffer it writes, published on reallocation
+    private FrameImage spareFrame;             // renderer side: the previous size's buffer, kept for preview toggles
+    private RenderJob activeJob;               // renderer side: job being rendered, polled per tile for cancellation
+
+    public Lab8() { this(new Scene()); }
+
+    private Lab8(Scene scene) { this.scene = scene; }
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            new Lab8().runHeadless(args);
+            return;
+        }
         new Lab8().run();
     }
 
@@ -58,16 +182,186 @@ public class Lab8 {
         initOpenGL();
         setupScene();
         updateCameraLook();
+        renderer = new Lab8(scene.shareShapes());
+        renderer.stats = stats;
+        renderPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        renderThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lab8-render");
+            t.setDaemon(true);
+            return t;
+        });
 
-        renderImage();
-        uploadTexture();
-
-        loop();
-
+        try {
+            loop();
+            stopRender();
+        } finally {
+            renderThread.shutdown();
+            renderPool.shutdown();
+        }
         glfwDestroyWindow(window);
         glfwTerminate();
     }
 
+    // Scene and camera of the interactive view, built without a window (used by the lab-8-bench module)
+    static Lab8 headlessView(int width, int height) {
+        Lab8 lab = new Lab8();
+        lab.setupScene();
+        lab.updateCameraLook();
+        lab.camera.update(width, height);
+        return lab;
+    }
+    Scene scene() { return scene; }
+    Camera camera() { return camera; }
+
+    // Batch render without GLFW or OpenGL:
+    // --headless [--width W] [--height H] [--spp N] [--depth D] [--threads T] [--seed S]
+    //            [--sampler random|halton|sobol|bluenoise] [--shadow-samples N] [--glossy-samples N]
+    //            [--adaptive BUDGET] [--threshold E] [--shadow-probes on|off] [--mis on|off]
+    //            [--denoise on|off] [--heatmap file.png|file.ppm] [--mesh file.obj] [--forest N]
+    //            [--integrator whitted|path] [--scene default|highlights] [--out file.png|file.ppm]
+    // With --adaptive, refinement passes run until the average samples per pixel reach BUDGET or no pixel is above E;
+    // --spp is then ignored. --mesh adds the OBJ model to the scene, scaled to stand on the floor in front of the spheres;
+    // --forest scatters N instances of it (or of a low-poly bush) over the floor behind the scene.
+    private void runHeadless(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int spp = 1;
+        String out = "render.png";
+        String heatmapOut = null;
+        String meshFile = null;
+        int forest = 0;
+        boolean highlights = false;
+        int depth = -1;
+        imgWidth = baseWidth;
+        imgHeight = baseHeight;
+        for (int i = 1; i < args.length; i++) {
+            String opt = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + opt);
+            String val = args[++i];
+            switch (opt) {
+                case "--width": imgWidth = Integer.parseInt(val); break;
+                case "--height": imgHeight = Integer.parseInt(val); break;
+                case "--spp": spp = Integer.parseInt(val); break;
+                case "--depth": depth = Integer.parseInt(val); break;
+                case "--threads": threads = Integer.parseInt(val); break;
+                case "--seed": renderSeed = Long.parseLong(val); break;
+                case "--sampler": samplerKind = SamplerKind.parse(val); break;
+                case "--shadow-samples": shadowSamples = Integer.parseInt(val); break;
+                case "--glossy-samples": glossySamples = Integer.parseInt(val); break;
+                case "--shadow-probes": penumbraProbes = parseSwitch(opt, val); break;
+                case "--mis": misSampling = parseSwitch(opt, val); break;
+                case "--denoise": denoise = parseSwitch(opt, val); break;
+                case "--integrator":
+                    if (!val.equals("whitted") && !val.equals("path")) throw new IllegalArgumentException("Unknown integrator " + val);
+                    pathTracing = val.equals("path");
+                    break;
+                case "--adaptive": adaptive = true; adaptiveBudget = Double.parseDouble(val); break;
+                case "--threshold": adaptiveThreshold = Double.parseDouble(val); break;
+                case "--out": out = val; break;
+                case "--heatmap": heatmap = true; heatmapOut = val; break;
+                case "--mesh": meshFile = val; break;
+                case "--forest": forest = Integer.parseInt(val); break;
+                case "--scene":
+                    if (!val.equals("default") && !val.equals("highlights")) throw new IllegalArgumentException("Unknown scene " + val);
+                    highlights = val.equals("highlights");
+                    break;
+                default: throw new IllegalArgumentException("Unknown option " + opt);
+            }
+        }
+        if (forest < 0) throw new IllegalArgumentException("Forest size must not be negative");
+        // --depth is the recursion limit of the Whitted tracer and the bounce cap of the path tracer
+        if (depth != -1) {
+            if (depth < 0) throw new IllegalArgumentException("Depth must not be negative");
+            if (pathTracing) pathMaxBounces = depth; else maxDepth = depth;
+        }
+        if (imgWidth <= 0 || imgHeight <= 0 || spp <= 0 || threads <= 0) throw new IllegalArgumentException("Size, spp and threads must be positive");
+
+        if (highlights) setupHighlightScene(); else setupScene();
+        if (meshFile != null || forest > 0) {
+            try {
+                addMeshes(meshFile, forest);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read " + meshFile, e);
+            }
+        }
+        updateCameraLook();
+        attachPixels(ByteBuffer.allocateDirect(imgWidth * imgHeight * 4));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long t0 = System.nanoTime();
+            long[] before = stats.totals();
+            if (adaptive) {
+                do renderImage(pool); while (!refinementDone && accumPasses < MAX_ACCUM_PASSES);
+            } else {
+                for (int i = 0; i < spp; i++) renderImage(pool); // each pass adds one jittered sample per pixel
+            }
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            long rays = RenderStats.rays(stats.totals()) - RenderStats.rays(before);
+            if (denoise) {
+                long d0 = System.nanoTime();
+                denoiseImage(pool);
+                System.out.printf("Denoised in %.1f ms%n", (System.nanoTime() - d0) / 1e6);
+            }
+            System.out.println(RenderStats.describe(before, stats.totals(), seconds));
+            writeImage(pixelBuffer, imgWidth, imgHeight, out);
+            if (heatmapOut != null) writeHeatmap(costMap, heatmapOut);
+            System.out.printf("Rendered %dx%d, %.2f spp%s, %s %d, %d threads, %s sampler, seed %d in %.3f s%n",
+                    imgWidth, imgHeight, (double) totalSamples / (imgWidth * imgHeight), adaptive ? " (adaptive)" : "",
+                    pathTracing ? "path bounces" : "depth", pathTracing ? pathMaxBounces : maxDepth, threads, samplerKind.label, renderSeed, seconds);
+            System.out.printf("%d rays, %.2f Mrays/s -> %s%n", rays, rays / seconds / 1e6, out);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + (heatmapOut != null ? out + " or " + heatmapOut : out), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Writes the cost map as a false-colour image and prints its summary
+    private static void writeHeatmap(CostMap map, String path) throws IOException {
+        ByteBuffer image = ByteBuffer.allocateDirect(map.width * map.height * 4);
+        String summary = map.paint(image.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+        writeImage(image, map.width, map.height, path);
+        System.out.println(summary + " -> " + path);
+    }
+
+    // Shift+C: saves the renderer's current cost map. The job keeps running; a tile finishing meanwhile only makes
+    // the image a little newer in places.
+    private void exportHeatmap() {
+        CostMap map = renderer.costMap;
+        if (!renderer.heatmap || map == null) { System.out.println("Cost heatmap is off (C turns it on)"); return; }
+        try {
+            writeHeatmap(map, "lab8-heatmap.png");
+        } catch (IOException e) {
+            System.err.println("Failed to write lab8-heatmap.png: " + e.getMessage());
+        }
+    }
+
+    private static boolean parseSwitch(String opt, String val) {
+        if (val.equals("on")) return true;
+        if (val.equals("off")) return false;
+        throw new IllegalArgumentException(opt + " expects on or off, got " + val);
+    }
+
+    // Writes an RGBA8 buffer as PNG, or as binary PPM when the name ends in .ppm
+    static void writeImage(ByteBuffer rgba, int width, int height, String path) throws IOException {
+        if (path.toLowerCase().endsWith(".ppm")) {
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(path))) {
+                os.write(("P6\n" + width + " " + height + "\n255\n").getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+                for (int i = 0; i < width * height; i++) {
+                    os.write(rgba.get(i * 4)); os.write(rgba.get(i * 4 + 1)); os.write(rgba.get(i * 4 + 2));
+                }
+            }
+            return;
+        }
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                img.setRGB(x, y, (rgba.get(i) & 0xFF) << 16 | (rgba.get(i + 1) & 0xFF) << 8 | (rgba.get(i + 2) & 0xFF));
+            }
+        }
+        if (!ImageIO.write(img, "png", new File(path))) throw new IOException("No PNG writer available");
+    }
+
     // <<METHODS>>
     private void initGLFW() {
         GLFWErrorCallback.createPrint(System.err).set();
@@ -84,8 +378,24 @@ public class Lab8 {
                 if (key == GLFW_KEY_ESCAPE) glfwSetWindowShouldClose(window, true);
                 if (key == GLFW_KEY_R) { dirty = true; }
                 if (key == GLFW_KEY_S) { softShadows = !softShadows; dirty = true; }
+                if (key == GLFW_KEY_T) { pathTracing = !pathTracing; System.out.println("Integrator: " + (pathTracing ? "path" : "whitted")); dirty = true; }
+                if (key == GLFW_KEY_G) { temporal = !temporal; System.out.println("Temporal reprojection: " + (temporal ? "on" : "off")); }
+                if (key == GLFW_KEY_F) { governor.targetFps = governor.targetFps == 30 ? 60 : 30; System.out.println("Target frame rate: " + governor.targetFps + " FPS"); }
+                if (key == GLFW_KEY_X) { denoise = !denoise; System.out.println("Denoiser: " + (denoise ? "on" : "off")); dirty = true; }
+                if (key == GLFW_KEY_M) { misSampling = !misSampling; System.out.println("MIS: " + (misSampling ? "on" : "off")); dirty = true; }
+                if (key == GLFW_KEY_J) { penumbraProbes = !penumbraProbes; System.out.println("Penumbra probes: " + (penumbraProbes ? "on" : "off")); dirty = true; }
                 if (key == GLFW_KEY_SPACE) { animate = !animate; }
+                if (key == GLFW_KEY_U) { refitBvh = !refitBvh; System.out.println("BVH refit: " + (refitBvh ? "on" : "off (rebuild every frame)")); }
                 if (key == GLFW_KEY_F11) { toggleFullscreen(); }
+                if (key == GLFW_KEY_B) { stopRender(); reportScaling(); dirty = true; }
+                if (key == GLFW_KEY_L) { switchScene(); System.out.println("Scene: " + (highlightScene ? "highlights" : "default")); dirty = true; }
+                if (key == GLFW_KEY_P) { progressive = !progressive; }
+                if (key == GLFW_KEY_C && (mods & GLFW_MOD_SHIFT) != 0) exportHeatmap();
+                else if (key == GLFW_KEY_C) { heatmap = !heatmap; System.out.println("Cost heatmap: " + (heatmap ? "on" : "off")); dirty = true; }
+                if (key == GLFW_KEY_I) { statsLine = !statsLine; statsShown = null; System.out.println("Stats line: " + (statsLine ? "on" : "off")); }
+                if (key == GLFW_KEY_H) { coarseToFine = !coarseToFine; System.out.println("Coarse-to-fine first pass: " + (coarseToFine ? "on" : "off")); }
+                if (key == GLFW_KEY_V) { adaptive = !adaptive; System.out.println("Adaptive sampling: " + (adaptive ? "on" : "off")); dirty = true; }
+                if (key == GLFW_KEY_N) { samplerKind = SamplerKind.values()[(samplerKind.ordinal() + 1) % SamplerKind.values().length]; System.out.println("Sampler: " + samplerKind); dirty = true; }
                 if (key == GLFW_KEY_PAGE_UP) { camera.fov = Math.max(20f, camera.fov - 2f); dirty = true; }
                 if (key == GLFW_KEY_PAGE_DOWN) { camera.fov = Math.min(100f, camera.fov + 2f); dirty = true; }
                 if (key == GLFW_KEY_W) keyW = true;
@@ -129,7 +439,7 @@ public class Lab8 {
                 pitch -= dy * mouseSensitivity;
                 pitch = Math.max(-89.0, Math.min(89.0, pitch));
                 lastMouseX = mx; lastMouseY = my;
-                dirty = true;
+                cameraMoved = true;
             }
         });
 
@@ -174,16 +484,72 @@ public class Lab8 {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP);
 
-        // allocate initial buffer
-        pixelBuffer = org.lwjgl.BufferUtils.createByteBuffer(imgWidth * imgHeight * 4);
+        pboUpload = GL.getCapabilities().OpenGL21;
+        if (pboUpload) { uploadPbos[0] = glGenBuffers(); uploadPbos[1] = glGenBuffers(); }
+        mapRange = GL.getCapabilities().OpenGL30;
 
         glEnable(GL_TEXTURE_2D);
     }
 
-    private void uploadTexture() {
+    private void uploadTexture(FrameImage frame) {
+        // Read before the copy: a tile finishing during it counts as a change for the next frame
+        long writes = frame.writes.sum();
+        if (frame == uploadedFrame && writes == uploadedWrites) return;
+        uploadedFrame = frame;
+        uploadedWrites = writes;
+        UploadEvent event = new UploadEvent();
+        event.begin();
+        long t0 = System.nanoTime();
+        upload(frame);
+        stats.add(RenderStats.UPLOAD_NANOS, System.nanoTime() - t0);
+        if (event.shouldCommit()) {
+            event.width = frame.width; event.height = frame.height; event.pbo = pboUpload;
+            event.commit();
+        }
+    }
+
+    private void upload(FrameImage frame) {
+        int w = frame.width, h = frame.height, bytes = w * h * 4;
         glBindTexture(GL_TEXTURE_2D, screenTex);
-        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, imgWidth, imgHeight, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixelBuffer);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        if (w != texWidth || h != texHeight) {
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, w, h, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+            texWidth = w;
+            texHeight = h;
+        }
+        if (!pboUpload) {
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, frame.pixels);
+            return;
+        }
+        // The slot the previous frame did not use. Its storage is allocated once per size; mapping it invalidated
+        // lets the driver hand out memory no transfer is still reading, so the map never waits. Without GL 3.0
+        // the only way to get that is fresh storage from glBufferData, every time.
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, uploadPbos[uploadSlot]);
+        if (!mapRange || uploadPboBytes[uploadSlot] != bytes) {
+            glBufferData(GL_PIXEL_UNPACK_BUFFER, bytes, GL_STREAM_DRAW);
+            uploadPboBytes[uploadSlot] = bytes;
+        }
+        mappedPbo = mapRange
+                ? glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, bytes, GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT, mappedPbo)
+                : glMapBuffer(GL_PIXEL_UNPACK_BUFFER, GL_WRITE_ONLY, bytes, mappedPbo);
+        if (mappedPbo != null) {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(frame.pixels), MemoryUtil.memAddress(mappedPbo), bytes);
+            glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, w, h, GL_RGBA, GL_UNSIGNED_BYTE, 0L); // from the bound buffer
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+        uploadSlot ^= 1;
+    }
+
+    // Tells the GL thread that the shown frame changed since its last upload; headless renders have no shown frame
+    private void framePainted() {
+        FrameImage frame = shownFrame;
+        if (frame != null) frame.writes.increment();
+    }
+
+    private void attachPixels(ByteBuffer buffer) {
+        pixelBuffer = buffer;
+        pixelInts = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
     }
 
     private void changeRenderScale(double delta) {
@@ -194,12 +560,12 @@ public class Lab8 {
     }
 
     private void resizeRenderBuffers() {
-        // relative to renderScale
-        double previewScale = 0.6;
-        double s = renderScale * (preview ? previewScale : 1.0);
-        imgWidth = Math.max(64, (int)Math.round(baseWidth * s));
-        imgHeight = Math.max(36, (int)Math.round(baseHeight * s));
-        pixelBuffer = org.lwjgl.BufferUtils.createByteBuffer(imgWidth * imgHeight * 4);
+        double s = renderScale * (preview ? governor.scale() : 1.0);
+        int w = Math.max(64, (int)Math.round(baseWidth * s));
+        int h = Math.max(36, (int)Math.round(baseHeight * s));
+        if (w == imgWidth && h == imgHeight) return; // keeps the history for reprojection
+        imgWidth = w;
+        imgHeight = h;
         dirty = true;
     }
 
@@ -248,17 +614,17 @@ public class Lab8 {
     }
 
     private void loop() {
-        double t = 0.0;
         while (!glfwWindowShouldClose(window)) {
             // navigation per-frame
             boolean moved = handleMovement();
-            if (moved) dirty = true;
+            if (moved) cameraMoved = true;
             if (moved || rightMouseHeld) {
                 enterPreview();
             }
 
             if (animate) {
-                t += 0.016;
+                animationTime += 0.016;
+                double t = animationTime;
                 for (Light l : scene.lights) {
                     l.position.x = 3.0 + Math.cos(t) * 1.5;
                     l.position.z = 5.0 + Math.sin(t * 0.7);
@@ -266,23 +632,109 @@ public class Lab8 {
                 dirty = true;
             }
 
-            // Leave preview after short idle
-            if (preview && (System.currentTimeMillis() - lastInteractMs) > 250) {
+            // Leave preview once the last interactive frame is on screen and no input came for a frame budget
+            boolean idle = renderJob == null || renderJob.future.isDone();
+            if (renderJob != null && idle) observeFrame(renderJob);
+            if (preview && idle && System.currentTimeMillis() - lastInteractMs > governor.budgetMs()) {
                 exitPreview();
                 dirty = true;
             }
 
-            if (dirty) {
-                renderImage();
-                uploadTexture();
+            if (dirty || cameraMoved) {
+                // Pure camera motion can start from the previous frame; any other change renders from scratch
+                submitRender(true, temporal && !dirty);
                 dirty = false;
+                cameraMoved = false;
+            } else if (progressive && !preview && !renderJob.refines && renderJob.future.isDone()) {
+                submitRender(false, false); // progressive was switched back on: keep refining the same image
             }
+            presentLatest();
+            if (statsLine) printStats();
             drawFullscreen();
             glfwSwapBuffers(window);
             glfwPollEvents();
         }
     }
 
+    // Cancels the job in flight, at tile granularity, and queues one for the current state. restart renders from
+    // pass 0, reproject lets that pass start from the previous frame.
+    private void submitRender(boolean restart, boolean reproject) {
+        if (renderJob != null) {
+            observeFrame(renderJob);
+            renderJob.cancelled = true;
+        }
+        camera.update(imgWidth, imgHeight);
+        renderJob = new RenderJob(new RenderSnapshot(this, restart, reproject));
+        renderJob.future = renderThread.submit(renderJob);
+        presentPending = true;
+    }
+
+    // Feeds the first-pass time of an interactive job to the governor, once. A job cancelled before its first pass
+    // ended counts with the time it had run if that already exceeds the budget; otherwise it says nothing.
+    private void observeFrame(RenderJob job) {
+        if (job.observed || !job.snapshot.preview) return;
+        long start = job.startNanos, end = job.firstPassNanos;
+        double ms;
+        if (end != 0) ms = (end - start) / 1e6;
+        else if (start != 0 && (System.nanoTime() - start) / 1e6 > governor.budgetMs()) ms = (System.nanoTime() - start) / 1e6;
+        else return;
+        job.observed = true;
+        if (!governor.observe(ms)) return;
+        previewMaxDepth = governor.maxDepth();
+        previewShadowSamples = governor.shadowSamples();
+        previewGlossySamples = governor.glossySamples();
+        System.out.printf("Preview quality %d/%d for %d FPS: scale %.2f, depth %d, %d shadow, %d glossy samples (%.1f ms frame)%n",
+                governor.level + 1, QualityGovernor.LEVELS.length, governor.targetFps, governor.scale(),
+                previewMaxDepth, previewShadowSamples, previewGlossySamples, ms);
+        resizeRenderBuffers();
+    }
+
+    // Every STATS_INTERVAL_MS: what the render and GL threads did since the previous line
+    private void printStats() {
+        long now = System.currentTimeMillis();
+        if (statsShown != null && now - statsShownMs < STATS_INTERVAL_MS) return;
+        long[] totals = stats.totals();
+        if (statsShown != null) System.out.println(RenderStats.describe(statsShown, totals, (now - statsShownMs) / 1000.0));
+        statsShown = totals;
+        statsShownMs = now;
+    }
+
+    // Swaps the view between the stock scene and the highlights scene (the one where MIS engages). The old
+    // renderer may still be tracing the old shapes, so it is stopped and replaced by one sharing the new ones.
+    private void switchScene() {
+        stopRender();
+        highlightScene = !highlightScene;
+        scene = new Scene();
+        if (highlightScene) setupHighlightScene(); else setupScene();
+        updateCameraLook();
+        Lab8 r = new Lab8(scene.shareShapes());
+        r.stats = stats;
+        renderer = r;
+    }
+
+    // Cancels the job in flight and waits for the render thread to leave it
+    private void stopRender() {
+        if (renderJob == null) return;
+        renderJob.cancelled = true;
+        try {
+            renderJob.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Render job failed", e.getCause());
+        }
+    }
+
+    // Uploads whatever the renderer has written so far, every frame while a job runs and once more after it ends
+    private void presentLatest() {
+        if (!presentPending) return;
+        boolean running = !renderJob.future.isDone();
+        if (!running) stopRender(); // rethrows a failure of the job
+        FrameImage frame = renderer.shownFrame;
+        if (frame != null) uploadTexture(frame);
+        presentPending = running;
+    }
+
     private void enterPreview() {
         lastInteractMs = System.currentTimeMillis();
         if (!preview) {
@@ -302,25 +754,571 @@ public class Lab8 {
     static class Scene {
         java.util.List<Shape> shapes = new java.util.ArrayList<>();
         java.util.List<Light> lights = new java.util.ArrayList<>();
-        Hit intersect(Ray r) {
-            Hit best = new Hit(); best.t = 1.0E9;
-            for (Shape s : shapes) {
-                Hit h = s.intersect(r, 1.0E-4, best.t);
-                if (h.hit && h.t < best.t) best = h;
+
+        // build() compiles the shape list into flat arrays; call it after changing the list or any shape in it.
+        // Shape ids number the bounded shapes first (the BVH's primitives), then the planes, then other unbounded
+        // shapes. Spheres, boxes and planes are copied per type into stride arrays and intersected by their own
+        // kernels over those arrays, with the material looked up by index, so the hot loops make no virtual calls
+        // and chase no pointers per shape; kinds[id] and slots[id] say which array and entry. Cylinders, cones,
+        // meshes and instances stay objects (kind OTHER) and keep their virtual intersect().
+        static final byte SPHERE = 0, BOX = 1, PLANE = 2, OTHER = 3;
+        private Shape[] byId = new Shape[0];
+        private byte[] kinds = new byte[0];
+        private int[] slots = new int[0];       // entry in the kind's arrays; the id itself for OTHER
+        private int boundedCount, otherStart;   // ids below boundedCount are bounded, planes run up to otherStart
+        private Material[] materials = new Material[0];
+        private double[] spheres = new double[0]; // 4 per sphere: centre x,y,z, radius
+        private double[] boxes = new double[0];   // 6 per box: min x,y,z, max x,y,z
+        private double[] planes = new double[0];  // 4 per plane: unit normal x,y,z, offset
+        private int[] sphereMaterial = new int[0], boxMaterial = new int[0], planeMaterial = new int[0];
+        private Accel accel = new Accel(new Bvh(new double[0], 0));
+        private double[] primBounds = new double[0]; // 6 per bounded shape, kept for refits
+
+        // Animation: movers.get(i) puts moving.get(i) where it is at a given time, and animate() then updates the
+        // BVH. In the dynamic mode the tree is refitted in place and only rebuilt once refits have made it
+        // REBUILD_RATIO times as expensive as when it was built; the rebuild can run in the background while the
+        // refitted old tree keeps serving rays. With refit off every frame builds a new tree.
+        private static final double REBUILD_RATIO = 1.3;
+        private static final ExecutorService BVH_BUILDER = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "lab8-bvh-build");
+            t.setDaemon(true);
+            return t;
+        });
+        private java.util.List<Shape> moving = new java.util.ArrayList<>();
+        private java.util.List<java.util.function.DoubleConsumer> movers = new java.util.ArrayList<>();
+        private int[] movingIds = new int[0];
+        boolean refit = true;
+        boolean backgroundRebuild = true;
+
+        // The BVH and its background rebuild, behind one reference so that every scene sharing shapes sees the tree
+        // animate() swapped in, not the one it had when it was shared. Queries read bvh once and keep that tree.
+        private static final class Accel {
+            volatile Bvh bvh;
+            Future<Bvh> pendingBuild;
+            Accel(Bvh bvh) { this.bvh = bvh; }
+        }
+
+        // Copy that shares shapes, compiled arrays and acceleration structure with this one; its light list is its
+        // own. Either scene may animate and both stay up to date, until one of them calls build() and gets arrays
+        // and a tree of its own.
+        Scene shareShapes() {
+            Scene s = new Scene();
+            s.shapes = shapes;
+            s.byId = byId; s.kinds = kinds; s.slots = slots;
+            s.boundedCount = boundedCount; s.otherStart = otherStart;
+            s.materials = materials;
+            s.spheres = spheres; s.boxes = boxes; s.planes = planes;
+            s.sphereMaterial = sphereMaterial; s.boxMaterial = boxMaterial; s.planeMaterial = planeMaterial;
+            s.accel = accel;
+            s.primBounds = primBounds;
+            s.moving = moving;
+            s.movers = movers;
+            s.movingIds = movingIds;
+            return s;
+        }
+
+        void build() {
+            java.util.List<Shape> fin = new java.util.ArrayList<>();
+            java.util.List<Shape> flat = new java.util.ArrayList<>();
+            java.util.List<Shape> inf = new java.util.ArrayList<>();
+            // Only the exact classes are compiled: a subclass may override more than the arrays hold, so it stays an
+            // OTHER shape and keeps its own object
+            for (Shape s : shapes) (s.bounds() != null ? fin : s.getClass() == Plane.class ? flat : inf).add(s);
+            boundedCount = fin.size();
+            otherStart = boundedCount + flat.size();
+            fin.addAll(flat);
+            fin.addAll(inf);
+            byId = fin.toArray(new Shape[0]);
+            int n = byId.length;
+            kinds = new byte[n];
+            slots = new int[n];
+            int[] perKind = new int[3];
+            java.util.Map<Material, Integer> materialIds = new java.util.IdentityHashMap<>();
+            for (int id = 0; id < n; id++) {
+                Shape s = byId[id];
+                Class<?> c = s.getClass();
+                byte kind = c == Sphere.class ? SPHERE : c == Box.class ? BOX : c == Plane.class ? PLANE : OTHER;
+                kinds[id] = kind;
+                slots[id] = kind == OTHER ? id : perKind[kind]++;
+                materialIds.putIfAbsent(s.getMaterial(), materialIds.size());
+            }
+            materials = new Material[materialIds.size()];
+            for (java.util.Map.Entry<Material, Integer> e : materialIds.entrySet()) materials[e.getValue()] = e.getKey();
+            spheres = new double[perKind[SPHERE] * 4]; sphereMaterial = new int[perKind[SPHERE]];
+            boxes = new double[perKind[BOX] * 6]; boxMaterial = new int[perKind[BOX]];
+            planes = new double[perKind[PLANE] * 4]; planeMaterial = new int[perKind[PLANE]];
+            primBounds = new double[boundedCount * 6];
+            for (int id = 0; id < n; id++) {
+                int material = materialIds.get(byId[id].getMaterial());
+                switch (kinds[id]) {
+                    case SPHERE: sphereMaterial[slots[id]] = material; break;
+                    case BOX: boxMaterial[slots[id]] = material; break;
+                    case PLANE: planeMaterial[slots[id]] = material; break;
+                    default: break;
+                }
+                store(id);
+            }
+            accel = new Accel(new Bvh(primBounds, boundedCount));
+            java.util.Map<Shape, Integer> idOf = new java.util.IdentityHashMap<>();
+            for (int id = 0; id < n; id++) idOf.put(byId[id], id);
+            movingIds = new int[moving.size()];
+            for (int i = 0; i < movingIds.length; i++) {
+                Integer id = idOf.get(moving.get(i));
+                if (id == null) throw new IllegalStateException("Animated shape is not in the scene");
+                movingIds[i] = id;
+            }
+        }
+
+        // Copies the geometry of shape id into its kind's arrays, and its box into primBounds when it is bounded
+        private void store(int id) {
+            Shape s = byId[id];
+            int o = slots[id];
+            switch (kinds[id]) {
+                case SPHERE: {
+                    Sphere sp = (Sphere) s;
+                    o *= 4;
+                    spheres[o] = sp.c.x; spheres[o + 1] = sp.c.y; spheres[o + 2] = sp.c.z; spheres[o + 3] = sp.r;
+                    break;
+                }
+                case BOX: {
+                    Box b = (Box) s;
+                    o *= 6;
+                    boxes[o] = b.bmin.x; boxes[o + 1] = b.bmin.y; boxes[o + 2] = b.bmin.z;
+                    boxes[o + 3] = b.bmax.x; boxes[o + 4] = b.bmax.y; boxes[o + 5] = b.bmax.z;
+                    break;
+                }
+                case PLANE: {
+                    Plane p = (Plane) s;
+                    o *= 4;
+                    planes[o] = p.n.x; planes[o + 1] = p.n.y; planes[o + 2] = p.n.z; planes[o + 3] = p.d;
+                    break;
+                }
+                default: break;
+            }
+            if (id < boundedCount) s.bounds().copyTo(primBounds, id * 6);
+        }
+
+        // Registers a shape that move places for a given time; t = 0 must leave it where it was added. Call build()
+        // afterwards.
+        void animate(Shape s, java.util.function.DoubleConsumer move) {
+            moving.add(s);
+            movers.add(move);
+        }
+
+        // Moves the animated shapes to time t and brings the BVH up to date. Returns true when a full build started.
+        boolean animate(double t) {
+            if (movers.isEmpty()) return false;
+            for (java.util.function.DoubleConsumer m : movers) m.accept(t);
+            for (int id : movingIds) store(id);
+            Accel a = accel;
+            if (!refit) {
+                a.pendingBuild = null;
+                a.bvh = new Bvh(primBounds, boundedCount);
+                return true;
+            }
+            Bvh bvh = a.bvh;
+            if (a.pendingBuild != null && a.pendingBuild.isDone()) {
+                try {
+                    bvh = a.pendingBuild.get(); // built from bounds a few frames old, which the refit below catches up on
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("BVH build failed", e.getCause());
+                }
+                a.pendingBuild = null;
+            }
+            bvh.refit(primBounds);
+            a.bvh = bvh;
+            if (a.pendingBuild != null || bvh.cost() <= REBUILD_RATIO * bvh.builtCost) return false;
+            if (backgroundRebuild) {
+                double[] snapshot = primBounds.clone();
+                int n = boundedCount;
+                a.pendingBuild = BVH_BUILDER.submit(() -> new Bvh(snapshot, n));
+            } else {
+                a.bvh = new Bvh(primBounds, boundedCount);
+            }
+            return true;
+        }
+
+        // Kernels over the compiled arrays, in two steps. xxxDistance() returns only t of the nearest hit in
+        // [tMin, tMax], or +infinity; queries keep (t, id) of the best candidate and call xxxAttributes() once, for the
+        // shape that won. Both run the static tests of Sphere, Box and Plane, so the objects and the arrays cannot
+        // disagree.
+        private double sphereDistance(int k, Ray ray, double tMin, double tMax) {
+            double[] s = spheres;
+            int o = k * 4;
+            Vec3 org = ray.origin, d = ray.direction;
+            return Sphere.distance(s[o], s[o + 1], s[o + 2], s[o + 3], org.x, org.y, org.z, d.x, d.y, d.z, tMin, tMax);
+        }
+
+        private void sphereAttributes(int k, Ray ray, double t, Hit out) {
+            double[] s = spheres;
+            int o = k * 4;
+            Sphere.attributes(s[o], s[o + 1], s[o + 2], s[o + 3], ray, t, out);
+            out.material = materials[sphereMaterial[k]];
+        }
+
+        private double boxDistance(int k, Ray ray, double tMin, double tMax) {
+            double[] b = boxes;
+            int o = k * 6;
+            Vec3 org = ray.origin, d = ray.direction;
+            return Box.distance(b[o], b[o + 1], b[o + 2], b[o + 3], b[o + 4], b[o + 5], org.x, org.y, org.z, 1.0 / d.x, 1.0 / d.y, 1.0 / d.z, tMin, tMax);
+        }
+
+        private void boxAttributes(int k, Ray ray, double t, Hit out) {
+            double[] b = boxes;
+            int o = k * 6;
+            Box.attributes(b[o], b[o + 1], b[o + 2], b[o + 3], b[o + 4], b[o + 5], ray, t, out);
+            out.material = materials[boxMaterial[k]];
+        }
+
+        private double planeDistance(int k, Ray ray, double tMin, double tMax) {
+            double[] pl = planes;
+            int o = k * 4;
+            Vec3 org = ray.origin, d = ray.direction;
+            return Plane.distance(pl[o], pl[o + 1], pl[o + 2], pl[o + 3], org.x, org.y, org.z, d.x, d.y, d.z, tMin, tMax);
+        }
+
+        private void planeAttributes(int k, Ray ray, double t, Hit out) {
+            double[] pl = planes;
+            int o = k * 4;
+            Plane.attributes(pl[o], pl[o + 1], pl[o + 2], ray, t, out);
+            out.material = materials[planeMaterial[k]];
+        }
+
+        // One compiled shape by id: distance-only, then the attributes at a t it returned
+        private double distanceId(int id, Ray r, double tMin, double tMax) {
+            switch (kinds[id]) {
+                case SPHERE: return sphereDistance(slots[id], r, tMin, tMax);
+                case BOX: return boxDistance(slots[id], r, tMin, tMax);
+                default: return planeDistance(slots[id], r, tMin, tMax);
+            }
+        }
+
+        private void attributesId(int id, Ray r, double t, Hit out) {
+            out.hit = true; out.t = t;
+            switch (kinds[id]) {
+                case SPHERE: sphereAttributes(slots[id], r, t, out); break;
+                case BOX: boxAttributes(slots[id], r, t, out); break;
+                default: planeAttributes(slots[id], r, t, out); break;
+            }
+        }
+
+        // One shape by id on its own, the way the closest-hit query tests it: distance first, attributes only on a hit
+        boolean intersectId(int id, Ray r, double tMin, double tMax, Hit out, TraceContext ctx) {
+            if (kinds[id] == OTHER) return byId[id].intersect(r, tMin, tMax, out, ctx);
+            double t = distanceId(id, r, tMin, tMax);
+            if (t == Double.POSITIVE_INFINITY) return false;
+            attributesId(id, r, t, out);
+            return true;
+        }
+
+        // Any hit in [tMin, tMax]: no attributes at all, and meshes stop at the first triangle they find
+        private boolean occludesId(int id, Ray r, double tMin, double tMax, TraceContext ctx) {
+            if (kinds[id] == OTHER) return byId[id].occludes(r, tMin, tMax, ctx);
+            return distanceId(id, r, tMin, tMax) != Double.POSITIVE_INFINITY;
+        }
+
+        // Closest hit along r, written into best; ctx supplies the scratch hit and traversal stack. Compiled shapes
+        // only move best.t and bestId; OTHER shapes still write a full hit, which then needs nothing more.
+        boolean intersect(Ray r, Hit best, TraceContext ctx) {
+            Hit h = ctx.scratch;
+            best.hit = false; best.t = 1.0E9;
+            int bestId = -1;
+            ctx.shapeTests += byId.length - boundedCount;
+            for (int id = boundedCount; id < otherStart; id++) {
+                double t = planeDistance(slots[id], r, 1.0E-4, best.t);
+                if (t < best.t) { best.t = t; bestId = id; }
+            }
+            for (int id = otherStart; id < byId.length; id++) {
+                if (byId[id].intersect(r, 1.0E-4, best.t, h, ctx) && h.t < best.t) { best.set(h); bestId = -1; }
+            }
+            Bvh bvh = accel.bvh;
+            if (bvh.nodeCount > 0) bestId = traverse(bvh, r, best, bestId, h, ctx);
+            if (bestId >= 0) attributesId(bestId, r, best.t, best);
+            return best.hit;
+        }
+
+        private int traverse(Bvh bvh, Ray r, Hit best, int bestId, Hit h, TraceContext ctx) {
+            int visits = 0, tests = 0; // kept local in the loop, added to ctx once
+            Vec3 o = r.origin, d = r.direction;
+            double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+            ctx.ensureStack(bvh.depth + 1);
+            int[] stack = ctx.stack;
+            double[] stackT = ctx.stackT;
+            int sp = 0;
+            int node = 0;
+            double tNode = bvh.hitBounds(0, o.x, o.y, o.z, ix, iy, iz, best.t);
+            while (true) {
+                if (tNode <= best.t) {
+                    visits++;
+                    int count = bvh.count[node];
+                    if (count == 0) {
+                        // Visit the nearer child first and defer the other one
+                        int left = bvh.first[node], right = left + 1;
+                        double tl = bvh.hitBounds(left, o.x, o.y, o.z, ix, iy, iz, best.t);
+                        double tr = bvh.hitBounds(right, o.x, o.y, o.z, ix, iy, iz, best.t);
+                        if (tr < tl) { int tmp = left; left = right; right = tmp; double tt = tl; tl = tr; tr = tt; }
+                        if (tr != Double.POSITIVE_INFINITY) { stack[sp] = right; stackT[sp] = tr; sp++; }
+                        if (tl != Double.POSITIVE_INFINITY) { node = left; tNode = tl; continue; }
+                    } else {
+                        int start = bvh.first[node];
+                        tests += count;
+                        for (int i = start; i < start + count; i++) {
+                            int id = bvh.prims[i];
+                            if (kinds[id] == OTHER) {
+                                if (byId[id].intersect(r, 1.0E-4, best.t, h, ctx) && h.t < best.t) { best.set(h); bestId = -1; }
+                            } else {
+                                double t = distanceId(id, r, 1.0E-4, best.t);
+                                if (t < best.t) { best.t = t; bestId = id; }
+                            }
+                        }
+                    }
+                }
+                if (sp == 0) break;
+                sp--;
+                node = stack[sp]; tNode = stackT[sp];
             }
-            return best;
+            ctx.nodeVisits += visits; ctx.shapeTests += tests;
+            return bestId;
         }
-        boolean occluded(Ray r, double maxDist) {
-            for (Shape s : shapes) {
-                Hit h = s.intersect(r, 1e-4, maxDist);
-                if (h.hit) return true;
+
+        boolean occluded(Ray r, double maxDist, TraceContext ctx) {
+            ctx.shadowRays++;
+            for (int id = boundedCount; id < byId.length; id++) {
+                ctx.shapeTests++;
+                if (occludesId(id, r, 1e-4, maxDist, ctx)) return true;
+            }
+            Bvh bvh = accel.bvh;
+            if (bvh.nodeCount == 0) return false;
+            Vec3 o = r.origin, d = r.direction;
+            double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+            ctx.ensureStack(bvh.depth + 2);
+            int[] stack = ctx.stack;
+            int sp = 0;
+            stack[sp++] = 0;
+            int visits = 0, tests = 0;
+            while (sp > 0) {
+                int node = stack[--sp];
+                if (bvh.hitBounds(node, o.x, o.y, o.z, ix, iy, iz, maxDist) == Double.POSITIVE_INFINITY) continue;
+                visits++;
+                int count = bvh.count[node];
+                if (count == 0) {
+                    stack[sp++] = bvh.first[node] + 1;
+                    stack[sp++] = bvh.first[node];
+                } else {
+                    int start = bvh.first[node];
+                    for (int i = start; i < start + count; i++) {
+                        tests++;
+                        if (occludesId(bvh.prims[i], r, 1e-4, maxDist, ctx)) {
+                            ctx.nodeVisits += visits; ctx.shapeTests += tests;
+                            return true;
+                        }
+                    }
+                }
             }
+            ctx.nodeVisits += visits; ctx.shapeTests += tests;
             return false;
         }
-        Vec3 background(Ray r) {
-            Vec3 d = r.direction.normalized();
-            double t = 0.5 * (d.y + 1.0);
-            return new Vec3(0.6, 0.8, 1.0).mul(t).add(new Vec3(1.0,1.0,1.0).mul(1.0 - t)).mul(0.8);
+
+        void background(Ray r, Vec3 out) {
+            Vec3 d = r.direction;
+            double l = d.length();
+            double t = 0.5 * ((l == 0 ? 0 : d.y / l) + 1.0);
+            out.set((0.6 * t + 1.0 * (1.0 - t)) * 0.8, (0.8 * t + 1.0 * (1.0 - t)) * 0.8, (1.0 * t + 1.0 * (1.0 - t)) * 0.8);
+        }
+    }
+
+    // Flattened bounding volume hierarchy built with the binned surface area heuristic.
+    // Nodes live in parallel primitive arrays; the children of an interior node are stored next to each other.
+    static class Bvh {
+        private static final int BINS = 12;
+        private static final int MAX_LEAF = 4;
+        private static final double TRAVERSAL_COST = 1.0; // relative to one primitive test
+
+        double[] bounds;  // 6 per node: min x,y,z then max x,y,z
+        int[] first;      // interior: index of the left child; leaf: offset into prims
+        int[] count;      // number of primitives in a leaf, 0 for interior nodes
+        int[] prims;      // primitive indices referenced by the leaves
+        int nodeCount;
+        int depth;        // longest root-to-leaf path, sizes traversal stacks
+        final double builtCost; // cost() when built, the reference for how far refits have degraded the tree
+
+        private double[] primBounds; // build input, released once the tree is built
+        private double[] centroids;
+
+        Bvh(double[] primBounds, int n) {
+            this.primBounds = primBounds;
+            int maxNodes = Math.max(1, 2 * n - 1);
+            bounds = new double[maxNodes * 6];
+            first = new int[maxNodes];
+            count = new int[maxNodes];
+            prims = new int[n];
+            centroids = new double[n * 3];
+            for (int i = 0; i < n; i++) {
+                prims[i] = i;
+                for (int a = 0; a < 3; a++) centroids[i * 3 + a] = 0.5 * (primBounds[i * 6 + a] + primBounds[i * 6 + 3 + a]);
+            }
+            if (n > 0) {
+                nodeCount = 1;
+                subdivide(0, 0, n, 0);
+            }
+            // Leaves usually hold several primitives, so far fewer than 2n-1 nodes are used; for a large mesh the
+            // unused tail and the build arrays would otherwise stay alive as long as the tree
+            bounds = java.util.Arrays.copyOf(bounds, nodeCount * 6);
+            first = java.util.Arrays.copyOf(first, nodeCount);
+            count = java.util.Arrays.copyOf(count, nodeCount);
+            this.primBounds = null;
+            centroids = null;
+            builtCost = cost();
+        }
+
+        // Recomputes every node box from new primitive bounds, keeping the topology. Children are stored after their
+        // parent, so a single backwards sweep has both children ready before it reaches the parent.
+        void refit(double[] primBounds) {
+            for (int node = nodeCount - 1; node >= 0; node--) {
+                int o = node * 6;
+                resetBounds(bounds, o);
+                int f = first[node], n = count[node];
+                if (n == 0) {
+                    growBounds(bounds, o, bounds, f * 6);
+                    growBounds(bounds, o, bounds, (f + 1) * 6);
+                } else {
+                    for (int i = f; i < f + n; i++) growBounds(bounds, o, primBounds, prims[i] * 6);
+                }
+            }
+        }
+
+        // Expected primitive tests plus weighted node visits for a ray through the root, by the surface area heuristic
+        double cost() {
+            if (nodeCount == 0) return 0.0;
+            double rootArea = surfaceArea(bounds, 0);
+            if (rootArea <= 0.0) return 0.0;
+            double c = 0.0;
+            for (int node = 0; node < nodeCount; node++) c += surfaceArea(bounds, node * 6) * (count[node] == 0 ? TRAVERSAL_COST : count[node]);
+            return c / rootArea;
+        }
+
+        private void subdivide(int node, int start, int end, int level) {
+            depth = Math.max(depth, level);
+            int o = node * 6;
+            double cminX = Double.POSITIVE_INFINITY, cminY = cminX, cminZ = cminX;
+            double cmaxX = Double.NEGATIVE_INFINITY, cmaxY = cmaxX, cmaxZ = cmaxX;
+            for (int a = 0; a < 3; a++) { bounds[o + a] = Double.POSITIVE_INFINITY; bounds[o + 3 + a] = Double.NEGATIVE_INFINITY; }
+            for (int i = start; i < end; i++) {
+                int p = prims[i];
+                growBounds(bounds, o, primBounds, p * 6);
+                double cx = centroids[p * 3], cy = centroids[p * 3 + 1], cz = centroids[p * 3 + 2];
+                cminX = Math.min(cminX, cx); cmaxX = Math.max(cmaxX, cx);
+                cminY = Math.min(cminY, cy); cmaxY = Math.max(cmaxY, cy);
+                cminZ = Math.min(cminZ, cz); cmaxZ = Math.max(cmaxZ, cz);
+            }
+            int n = end - start;
+            first[node] = start;
+            count[node] = n;
+            if (n <= 1) return;
+
+            // Evaluate BINS-1 candidate planes per axis over the centroid bounds
+            double[] cmin = {cminX, cminY, cminZ}, cmax = {cmaxX, cmaxY, cmaxZ};
+            double bestCost = Double.POSITIVE_INFINITY;
+            int bestAxis = -1, bestSplit = -1;
+            int[] binCount = new int[BINS];
+            double[] binBounds = new double[BINS * 6];
+            double[] acc = new double[6];
+            double[] leftArea = new double[BINS];
+            int[] leftCount = new int[BINS];
+            for (int axis = 0; axis < 3; axis++) {
+                double extent = cmax[axis] - cmin[axis];
+                if (extent <= 1e-12) continue;
+                java.util.Arrays.fill(binCount, 0);
+                for (int b = 0; b < BINS; b++) resetBounds(binBounds, b * 6);
+                double scale = BINS / extent;
+                for (int i = start; i < end; i++) {
+                    int p = prims[i];
+                    int b = Math.min(BINS - 1, (int) ((centroids[p * 3 + axis] - cmin[axis]) * scale));
+                    binCount[b]++;
+                    growBounds(binBounds, b * 6, primBounds, p * 6);
+                }
+                resetBounds(acc, 0);
+                int c = 0;
+                for (int b = 0; b < BINS - 1; b++) {
+                    growBounds(acc, 0, binBounds, b * 6);
+                    c += binCount[b];
+                    leftCount[b] = c;
+                    leftArea[b] = c > 0 ? surfaceArea(acc, 0) : 0.0;
+                }
+                resetBounds(acc, 0);
+                c = 0;
+                for (int b = BINS - 1; b > 0; b--) {
+                    growBounds(acc, 0, binBounds, b * 6);
+                    c += binCount[b];
+                    int split = b - 1; // left side holds bins 0..split
+                    if (c == 0 || leftCount[split] == 0) continue;
+                    double cost = leftCount[split] * leftArea[split] + c * surfaceArea(acc, 0);
+                    if (cost < bestCost) { bestCost = cost; bestAxis = axis; bestSplit = split; }
+                }
+            }
+
+            int mid;
+            if (bestAxis < 0) {
+                // All centroids coincide: no plane separates them, so split by index to bound the depth
+                if (n <= MAX_LEAF) return;
+                mid = start + n / 2;
+            } else {
+                double splitCost = TRAVERSAL_COST + bestCost / surfaceArea(bounds, o);
+                if (splitCost >= n && n <= MAX_LEAF) return;
+                double scale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+                int i = start, j = end - 1;
+                while (i <= j) {
+                    int p = prims[i];
+                    int b = Math.min(BINS - 1, (int) ((centroids[p * 3 + bestAxis] - cmin[bestAxis]) * scale));
+                    if (b <= bestSplit) i++;
+                    else { prims[i] = prims[j]; prims[j] = p; j--; }
+                }
+                mid = i;
+            }
+            int left = nodeCount;
+            nodeCount += 2;
+            first[node] = left;
+            count[node] = 0;
+            subdivide(left, start, mid, level + 1);
+            subdivide(left + 1, mid, end, level + 1);
+        }
+
+        // Entry distance of the ray into the node's box, or +infinity when it misses within [0, tMax]
+        double hitBounds(int node, double ox, double oy, double oz, double ix, double iy, double iz, double tMax) {
+            int o = node * 6;
+            double tx0 = (bounds[o] - ox) * ix, tx1 = (bounds[o + 3] - ox) * ix;
+            double ty0 = (bounds[o + 1] - oy) * iy, ty1 = (bounds[o + 4] - oy) * iy;
+            double tz0 = (bounds[o + 2] - oz) * iz, tz1 = (bounds[o + 5] - oz) * iz;
+            double tNear = Math.max(Math.max(Math.min(tx0, tx1), Math.min(ty0, ty1)), Math.max(Math.min(tz0, tz1), 0.0));
+            double tFar = Math.min(Math.min(Math.max(tx0, tx1), Math.max(ty0, ty1)), Math.min(Math.max(tz0, tz1), tMax));
+            return tNear <= tFar ? tNear : Double.POSITIVE_INFINITY;
+        }
+
+        private static void resetBounds(double[] b, int o) {
+            for (int a = 0; a < 3; a++) { b[o + a] = Double.POSITIVE_INFINITY; b[o + 3 + a] = Double.NEGATIVE_INFINITY; }
+        }
+
+        private static void growBounds(double[] dst, int d, double[] src, int s) {
+            for (int a = 0; a < 3; a++) {
+                dst[d + a] = Math.min(dst[d + a], src[s + a]);
+                dst[d + 3 + a] = Math.max(dst[d + 3 + a], src[s + 3 + a]);
+            }
+        }
+
+        static double surfaceArea(double[] b, int o) {
+            double dx = b[o + 3] - b[o], dy = b[o + 4] - b[o + 1], dz = b[o + 5] - b[o + 2];
+            return 2.0 * (dx * dy + dy * dz + dz * dx);
+        }
+    }
+
+    static class Aabb {
+        Vec3 min, max;
+        Aabb(Vec3 min, Vec3 max) { this.min = min; this.max = max; }
+        void copyTo(double[] dst, int o) {
+            dst[o] = min.x; dst[o + 1] = min.y; dst[o + 2] = min.z;
+            dst[o + 3] = max.x; dst[o + 4] = max.y; dst[o + 5] = max.z;
         }
     }
 
@@ -338,25 +1336,63 @@ public class Lab8 {
             u = up.cross(w).normalized();
             v = w.cross(u);
         }
-        Ray generateRay(double sx, double sy) {
-            Vec3 dir = u.mul((2*sx-1)*halfWidth).add(v.mul((1-2*sy)*halfHeight)).sub(w).normalized();
-            return new Ray(eye, dir);
+        Camera snapshot() {
+            Camera c = new Camera();
+            c.eye = new Vec3(eye.x, eye.y, eye.z); c.lookAt = new Vec3(lookAt.x, lookAt.y, lookAt.z); c.up = new Vec3(up.x, up.y, up.z);
+            c.fov = fov; c.u = u; c.v = v; c.w = w; c.halfHeight = halfHeight; c.halfWidth = halfWidth;
+            return c;
+        }
+        void generateRay(double sx, double sy, Ray out) {
+            double a = (2*sx-1)*halfWidth, b = (1-2*sy)*halfHeight;
+            Vec3 dir = out.direction.set(u.x*a + v.x*b - w.x, u.y*a + v.y*b - w.y, u.z*a + v.z*b - w.z).normalizeLocal();
+            out.set(eye.x, eye.y, eye.z, dir.x, dir.y, dir.z);
         }
     }
 
     static class Light {
         Vec3 position; Vec3 color; double radius=0.0; double constant=1.0, linear=0.0, quadratic=0.0;
         Light(Vec3 p, Vec3 c){position=p;color=c;}
-        Vec3 samplePosition(java.util.Random rng){
-            if (radius<=0.0) return position;
-            double r = radius * Math.sqrt(rng.nextDouble());
-            double theta = 2.0*Math.PI*rng.nextDouble();
-            return new Vec3(position.x + r*Math.cos(theta), position.y, position.z + r*Math.sin(theta));
+        Light copy(){
+            Light l = new Light(new Vec3(position.x, position.y, position.z), new Vec3(color.x, color.y, color.z));
+            l.radius = radius; l.constant = constant; l.linear = linear; l.quadratic = quadratic;
+            return l;
+        }
+        // Maps (u1, u2) in [0,1)^2 to the light disk with the concentric mapping, which keeps stratified samples stratified
+        void samplePosition(double u1, double u2, Vec3 out){
+            if (radius<=0.0) { out.set(position); return; }
+            double a = 2.0*u1 - 1.0, b = 2.0*u2 - 1.0;
+            double r, theta;
+            if (a == 0 && b == 0) { r = 0; theta = 0; }
+            else if (Math.abs(a) > Math.abs(b)) { r = a; theta = (Math.PI/4) * (b/a); }
+            else { r = b; theta = (Math.PI/2) - (Math.PI/4) * (a/b); }
+            r *= radius;
+            out.set(position.x + r*Math.cos(theta), position.y, position.z + r*Math.sin(theta));
+        }
+        // Hit of the ray (o, unit dir) with the horizontal light disk, written to out
+        boolean intersectDisk(Vec3 o, Vec3 dir, Vec3 out){
+            if (radius<=0.0 || Math.abs(dir.y) < 1e-9) return false;
+            double t = (position.y - o.y) / dir.y;
+            if (t <= 0.0) return false;
+            double x = o.x + dir.x*t - position.x, z = o.z + dir.z*t - position.z;
+            if (x*x + z*z > radius*radius) return false;
+            out.set(position.x + x, position.y, position.z + z);
+            return true;
+        }
+        static final int PROBES = 5;
+        // Fixed probe points for the penumbra test: the disk centre and four points on the rim
+        void probePosition(int i, Vec3 out){
+            if (i == 0 || radius<=0.0) { out.set(position); return; }
+            double theta = (i - 1) * (Math.PI/2);
+            out.set(position.x + radius*Math.cos(theta), position.y, position.z + radius*Math.sin(theta));
         }
     }
 
-    interface Shape { Hit intersect(Ray r, double tMin, double tMax); default Vec3 albedoAt(Vec3 p){return getMaterial().albedoAt(p);} Material getMaterial(); }
-    static class Hit { boolean hit; double t; Vec3 position; Vec3 normal; Material material; }
+    // intersect() fills out and returns true for a hit in [tMin, tMax]; out is scratch storage and undefined on a miss.
+    // The scene calls the variant with the thread's TraceContext, which shapes with their own BVH use for its stack.
+    // Spheres, boxes and planes are compiled into Scene's arrays instead, so their intersect() is final there.
+    interface Shape { boolean intersect(Ray r, double tMin, double tMax, Hit out); default boolean intersect(Ray r, double tMin, double tMax, Hit out, TraceContext ctx){return intersect(r, tMin, tMax, out);} default boolean occludes(Ray r, double tMin, double tMax, TraceContext ctx){return intersect(r, tMin, tMax, ctx == null ? new Hit() : ctx.scratch, ctx);} default Aabb bounds(){return null;} default Vec3 albedoAt(Vec3 p){return getMaterial().albedoAt(p);} Material getMaterial(); }
+    static class Hit { boolean hit; double t; final Vec3 position = new Vec3(0,0,0); final Vec3 normal = new Vec3(0,0,0); Material material;
+        void set(Hit o){hit=o.hit;t=o.t;position.set(o.position);normal.set(o.normal);material=o.material;} }
     static class Material {
         Vec3 albedo = new Vec3(0.8,0.8,0.8); double kd=0.8, ks=0.2, shininess=64; double reflectivity=0.0, glossyRoughness=0.0; double refractivity=0.0, ior=1.5;
         Material(){} Material(Vec3 a){albedo=a;} Vec3 albedoAt(Vec3 p){return albedo;}
@@ -364,179 +1400,1583 @@ public class Lab8 {
 
     static class Sphere implements Shape {
         Vec3 c; double r; Material m; Sphere(Vec3 c,double r,Material m){this.c=c;this.r=r;this.m=m;}
-        public Hit intersect(Ray ray,double tMin,double tMax){
-            Vec3 oc = ray.origin.sub(c);
-            double a = ray.direction.dot(ray.direction);
-            double b = 2.0*oc.dot(ray.direction);
-            double c2 = oc.dot(oc)-r*r; double disc=b*b-4*a*c2; Hit h=new Hit(); if(disc<0) return h;
-            double s=Math.sqrt(disc); double t=(-b - s)/(2*a); if(t<tMin||t>tMax){ t=(-b + s)/(2*a); if(t<tMin||t>tMax) return h; }
-            h.hit=true; h.t=t; h.position=ray.at(t); h.normal=h.position.sub(c).div(r).normalized(); h.material=m; return h;
+        public final boolean intersect(Ray ray,double tMin,double tMax,Hit out){
+            Vec3 o=ray.origin, d=ray.direction;
+            double t=distance(c.x,c.y,c.z,r, o.x,o.y,o.z, d.x,d.y,d.z, tMin,tMax); if(t==Double.POSITIVE_INFINITY) return false;
+            out.hit=true; out.t=t; attributes(c.x,c.y,c.z,r, ray, t, out); out.material=m; return true;
+        }
+        // The one sphere test, also run by Scene on its compiled spheres:
+        // t of the nearest hit in [tMin, tMax], or +infinity
+        static double distance(double cx,double cy,double cz,double r, double ox,double oy,double oz, double dx,double dy,double dz, double tMin,double tMax){
+            double ocx=ox-cx, ocy=oy-cy, ocz=oz-cz;
+            double a = dx*dx+dy*dy+dz*dz;
+            double b = 2.0*(ocx*dx+ocy*dy+ocz*dz);
+            double c2 = (ocx*ocx+ocy*ocy+ocz*ocz)-r*r; double disc=b*b-4*a*c2; if(disc<0) return Double.POSITIVE_INFINITY;
+            double s=Math.sqrt(disc); double t=(-b - s)/(2*a); if(t<tMin||t>tMax){ t=(-b + s)/(2*a); if(t<tMin||t>tMax) return Double.POSITIVE_INFINITY; }
+            return t;
         }
+        // Position and normal at a t that distance() returned
+        static void attributes(double cx,double cy,double cz,double r, Ray ray,double t,Hit out){
+            Vec3 o=ray.origin, d=ray.direction; Vec3 p=out.position.set(o.x+d.x*t, o.y+d.y*t, o.z+d.z*t);
+            out.normal.set((p.x-cx)/r, (p.y-cy)/r, (p.z-cz)/r).normalizeLocal();
+        }
+        public Aabb bounds(){return new Aabb(new Vec3(c.x-r,c.y-r,c.z-r), new Vec3(c.x+r,c.y+r,c.z+r));}
         public Material getMaterial(){return m;}
     }
 
     static class Plane implements Shape { Vec3 n; double d; Material m; Plane(Vec3 n,double d,Material m){this.n=n.normalized();this.d=d;this.m=m;}
-        public Hit intersect(Ray ray,double tMin,double tMax){ double denom=n.dot(ray.direction); Hit h=new Hit(); if(Math.abs(denom)<1e-6) return h; double t=(d - n.dot(ray.origin))/denom; if(t<tMin||t>tMax) return h; h.hit=true; h.t=t; h.position=ray.at(t); h.normal=denom<0?n:n.neg(); h.material=m; return h; }
+        public final boolean intersect(Ray ray,double tMin,double tMax,Hit out){ Vec3 o=ray.origin, dir=ray.direction; double t=distance(n.x,n.y,n.z,d, o.x,o.y,o.z, dir.x,dir.y,dir.z, tMin,tMax); if(t==Double.POSITIVE_INFINITY) return false;
+            out.hit=true; out.t=t; attributes(n.x,n.y,n.z, ray, t, out); out.material=m; return true; }
+        static double distance(double nx,double ny,double nz,double pd, double ox,double oy,double oz, double dx,double dy,double dz, double tMin,double tMax){
+            double denom=nx*dx+ny*dy+nz*dz; if(Math.abs(denom)<1e-6) return Double.POSITIVE_INFINITY; double t=(pd - (nx*ox+ny*oy+nz*oz))/denom; if(t<tMin||t>tMax) return Double.POSITIVE_INFINITY; return t; }
+        static void attributes(double nx,double ny,double nz, Ray ray,double t,Hit out){ Vec3 o=ray.origin, dir=ray.direction;
+            out.position.set(o.x+dir.x*t, o.y+dir.y*t, o.z+dir.z*t); if(nx*dir.x+ny*dir.y+nz*dir.z<0) out.normal.set(nx,ny,nz); else out.normal.set(-nx,-ny,-nz); }
         public Material getMaterial(){return m;}
         public Vec3 albedoAt(Vec3 p){ return m.albedoAt(p); }
     }
 
     static class Box implements Shape { Vec3 bmin,bmax; Material m; Box(Vec3 bmin,Vec3 bmax,Material m){this.bmin=bmin;this.bmax=bmax;this.m=m;}
-        public Hit intersect(Ray ray,double tMin,double tMax){ double t0=tMin,t1=tMax; for(int i=0;i<3;i++){ double invD=1.0/ray.direction.get(i); double tNear=(bmin.get(i)-ray.origin.get(i))*invD; double tFar=(bmax.get(i)-ray.origin.get(i))*invD; if(invD<0){ double tmp=tNear; tNear=tFar; tFar=tmp; } t0=Math.max(t0,tNear); t1=Math.min(t1,tFar); if(t1<=t0) return new Hit(); } Hit h=new Hit(); h.hit=true; h.t=t0; h.position=ray.at(t0); Vec3 p=h.position; Vec3 n=new Vec3(0,0,0); double eps=1e-4; if(Math.abs(p.x-bmin.x)<eps) n=new Vec3(-1,0,0); else if(Math.abs(p.x-bmax.x)<eps) n=new Vec3(1,0,0); else if(Math.abs(p.y-bmin.y)<eps) n=new Vec3(0,-1,0); else if(Math.abs(p.y-bmax.y)<eps) n=new Vec3(0,1,0); else if(Math.abs(p.z-bmin.z)<eps) n=new Vec3(0,0,-1); else n=new Vec3(0,0,1); h.normal=n; h.material=m; return h; }
+        public final boolean intersect(Ray ray,double tMin,double tMax,Hit out){ Vec3 o=ray.origin, d=ray.direction;
+            double t=distance(bmin.x,bmin.y,bmin.z,bmax.x,bmax.y,bmax.z, o.x,o.y,o.z, 1.0/d.x,1.0/d.y,1.0/d.z, tMin,tMax); if(t==Double.POSITIVE_INFINITY) return false;
+            out.hit=true; out.t=t; attributes(bmin.x,bmin.y,bmin.z,bmax.x,bmax.y,bmax.z, ray, t, out); out.material=m; return true; }
+        // Slab test on the inverse direction, folding x, y, z in that order and giving up as soon as the interval is empty
+        static double distance(double minX,double minY,double minZ,double maxX,double maxY,double maxZ, double ox,double oy,double oz, double ix,double iy,double iz, double tMin,double tMax){
+            double t0=tMin, t1=tMax;
+            t0=Math.max(t0, ix<0 ? (maxX-ox)*ix : (minX-ox)*ix); t1=Math.min(t1, ix<0 ? (minX-ox)*ix : (maxX-ox)*ix); if(t1<=t0) return Double.POSITIVE_INFINITY;
+            t0=Math.max(t0, iy<0 ? (maxY-oy)*iy : (minY-oy)*iy); t1=Math.min(t1, iy<0 ? (minY-oy)*iy : (maxY-oy)*iy); if(t1<=t0) return Double.POSITIVE_INFINITY;
+            t0=Math.max(t0, iz<0 ? (maxZ-oz)*iz : (minZ-oz)*iz); t1=Math.min(t1, iz<0 ? (minZ-oz)*iz : (maxZ-oz)*iz); if(t1<=t0) return Double.POSITIVE_INFINITY;
+            return t0; }
+        static void attributes(double minX,double minY,double minZ,double maxX,double maxY,double maxZ, Ray ray,double t,Hit out){
+            Vec3 o=ray.origin, d=ray.direction; Vec3 p=out.position.set(o.x+d.x*t, o.y+d.y*t, o.z+d.z*t); double eps=1e-4;
+            if(Math.abs(p.x-minX)<eps) out.normal.set(-1,0,0); else if(Math.abs(p.x-maxX)<eps) out.normal.set(1,0,0); else if(Math.abs(p.y-minY)<eps) out.normal.set(0,-1,0); else if(Math.abs(p.y-maxY)<eps) out.normal.set(0,1,0); else if(Math.abs(p.z-minZ)<eps) out.normal.set(0,0,-1); else out.normal.set(0,0,1); }
+        public Aabb bounds(){return new Aabb(bmin, bmax);}
         public Material getMaterial(){return m;}
     }
 
     static class Cylinder implements Shape { Vec3 c; double r; double y0,y1; Material m; Cylinder(Vec3 center,double radius,double y0,double y1,Material m){this.c=center;this.r=radius;this.y0=y0;this.y1=y1;this.m=m;}
-        public Hit intersect(Ray ray,double tMin,double tMax){ Vec3 ro=ray.origin.sub(c); double a=ray.direction.x*ray.direction.x + ray.direction.z*ray.direction.z; double b=2.0*(ro.x*ray.direction.x + ro.z*ray.direction.z); double cc=ro.x*ro.x+ro.z*ro.z - r*r; Hit best=new Hit(); best.t=tMax; if(Math.abs(a)>1e-8){ double disc=b*b-4*a*cc; if(disc>=0){ double s=Math.sqrt(disc); double t=(-b - s)/(2*a); for(int i=0;i<2;i++){ if(t>=tMin && t<=best.t){ Vec3 p=ray.at(t); double y=p.y - c.y; if(y>=y0 && y<=y1){ best.hit=true; best.t=t; best.position=p; Vec3 n=new Vec3(p.x-c.x,0,p.z-c.z).div(r).normalized(); if(ray.direction.dot(n)>0) n=n.neg(); best.normal=n; best.material=m; } } t=(-b + s)/(2*a); } } } double[] ys=new double[]{y0,y1}; for(double yplane:ys){ double t=(c.y + yplane - ray.origin.y)/ray.direction.y; if(t>=tMin && t<=best.t){ Vec3 p=ray.at(t); Vec3 d=p.sub(new Vec3(c.x,c.y,c.z)); if(d.x*d.x + d.z*d.z <= r*r + 1e-6){ best.hit=true; best.t=t; best.position=p; Vec3 n=new Vec3(0, yplane==y1?1:-1, 0); if(ray.direction.dot(n)>0) n=n.neg(); best.normal=n; best.material=m; } } } return best.hit?best:new Hit(); }
+        public boolean intersect(Ray ray,double tMin,double tMax,Hit out){
+            Vec3 o=ray.origin, d=ray.direction; double rox=o.x-c.x, roz=o.z-c.z;
+            double a=d.x*d.x + d.z*d.z; double b=2.0*(rox*d.x + roz*d.z); double cc=rox*rox+roz*roz - r*r; boolean hit=false; double bestT=tMax;
+            if(Math.abs(a)>1e-8){ double disc=b*b-4*a*cc; if(disc>=0){ double s=Math.sqrt(disc); double t=(-b - s)/(2*a); for(int i=0;i<2;i++){ if(t>=tMin && t<=bestT){ double px=o.x+d.x*t, py=o.y+d.y*t, pz=o.z+d.z*t; double y=py - c.y; if(y>=y0 && y<=y1){
+                hit=true; bestT=t; out.position.set(px,py,pz); Vec3 n=out.normal.set((px-c.x)/r, 0.0, (pz-c.z)/r).normalizeLocal(); if(d.dot(n)>0) n.set(-n.x,-n.y,-n.z); } } t=(-b + s)/(2*a); } } }
+            for(int k=0;k<2;k++){ double yplane=k==0?y0:y1; double t=(c.y + yplane - o.y)/d.y; if(t>=tMin && t<=bestT){ double px=o.x+d.x*t, pz=o.z+d.z*t; double dx=px-c.x, dz=pz-c.z; if(dx*dx + dz*dz <= r*r + 1e-6){
+                hit=true; bestT=t; out.position.set(px, o.y+d.y*t, pz); Vec3 n=out.normal.set(0, yplane==y1?1:-1, 0); if(d.dot(n)>0) n.set(-n.x,-n.y,-n.z); } } }
+            if(!hit) return false; out.hit=true; out.t=bestT; out.material=m; return true; }
+        public Aabb bounds(){return new Aabb(new Vec3(c.x-r,c.y+y0,c.z-r), new Vec3(c.x+r,c.y+y1,c.z+r));}
         public Material getMaterial(){return m;}
     }
 
     static class Cone implements Shape { Vec3 c; double r; double h; Material m; Cone(Vec3 baseCenter,double radius,double height,Material m){this.c=baseCenter;this.r=radius;this.h=height;this.m=m;}
-        public Hit intersect(Ray ray,double tMin,double tMax){ Vec3 ro=ray.origin.sub(new Vec3(c.x,c.y,c.z)); Vec3 rd=ray.direction; double k=r/h; double k2=k*k; double a=rd.x*rd.x + rd.z*rd.z - k2*rd.y*rd.y; double b=2*(ro.x*rd.x + ro.z*rd.z - k2*ro.y*rd.y); double cc=ro.x*ro.x + ro.z*ro.z - k2*ro.y*ro.y; Hit best=new Hit(); best.t=tMax; if(Math.abs(a)>1e-8){ double disc=b*b-4*a*cc; if(disc>=0){ double s=Math.sqrt(disc); double t=(-b - s)/(2*a); for(int i=0;i<2;i++){ if(t>=tMin && t<=best.t){ Vec3 p=ray.at(t); double y=p.y - c.y; if(y>=0 && y<=h){ best.hit=true; best.t=t; best.position=p; Vec3 pl=p.sub(c); Vec3 n=new Vec3(pl.x, -k2*pl.y, pl.z).normalized(); if(ray.direction.dot(n)>0) n=n.neg(); best.normal=n; best.material=m; } } t=(-b + s)/(2*a); } } } double t=(c.y - ray.origin.y)/ray.direction.y; if(t>=tMin && t<=best.t){ Vec3 p=ray.at(t); if(p.sub(new Vec3(c.x,c.y,c.z)).xzLength2() <= r*r + 1e-6){ best.hit=true; best.t=t; best.position=p; Vec3 n=new Vec3(0,-1,0); if(ray.direction.dot(n)>0) n=n.neg(); best.normal=n; best.material=m; } } return best.hit?best:new Hit(); }
+        public boolean intersect(Ray ray,double tMin,double tMax,Hit out){
+            Vec3 o=ray.origin, rd=ray.direction; double rox=o.x-c.x, roy=o.y-c.y, roz=o.z-c.z; double k=r/h; double k2=k*k;
+            double a=rd.x*rd.x + rd.z*rd.z - k2*rd.y*rd.y; double b=2*(rox*rd.x + roz*rd.z - k2*roy*rd.y); double cc=rox*rox + roz*roz - k2*roy*roy; boolean hit=false; double bestT=tMax;
+            if(Math.abs(a)>1e-8){ double disc=b*b-4*a*cc; if(disc>=0){ double s=Math.sqrt(disc); double t=(-b - s)/(2*a); for(int i=0;i<2;i++){ if(t>=tMin && t<=bestT){ double px=o.x+rd.x*t, py=o.y+rd.y*t, pz=o.z+rd.z*t; double y=py - c.y; if(y>=0 && y<=h){
+                hit=true; bestT=t; out.position.set(px,py,pz); Vec3 n=out.normal.set(px-c.x, -k2*(py-c.y), pz-c.z).normalizeLocal(); if(rd.dot(n)>0) n.set(-n.x,-n.y,-n.z); } } t=(-b + s)/(2*a); } } }
+            double t=(c.y - o.y)/rd.y; if(t>=tMin && t<=bestT){ double px=o.x+rd.x*t, pz=o.z+rd.z*t; double dx=px-c.x, dz=pz-c.z; if(dx*dx + dz*dz <= r*r + 1e-6){
+                hit=true; bestT=t; out.position.set(px, o.y+rd.y*t, pz); Vec3 n=out.normal.set(0,-1,0); if(rd.dot(n)>0) n.set(-n.x,-n.y,-n.z); } }
+            if(!hit) return false; out.hit=true; out.t=bestT; out.material=m; return true; }
+        public Aabb bounds(){return new Aabb(new Vec3(c.x-r,c.y,c.z-r), new Vec3(c.x+r,c.y+h,c.z+r));}
         public Material getMaterial(){return m;}
     }
 
-    static class Ray { Vec3 origin,direction; Ray(Vec3 o,Vec3 d){origin=o;direction=d.normalized();} Vec3 at(double t){return origin.add(direction.mul(t));} }
-    static class Vec3 { double x,y,z; Vec3(double x,double y,double z){this.x=x;this.y=y;this.z=z;} Vec3 add(Vec3 o){return new Vec3(x+o.x,y+o.y,z+o.z);} Vec3 sub(Vec3 o){return new Vec3(x-o.x,y-o.y,z-o.z);} Vec3 mul(double s){return new Vec3(x*s,y*s,z*s);} Vec3 mul(Vec3 o){return new Vec3(x*o.x,y*o.y,z*o.z);} Vec3 div(double s){return new Vec3(x/s,y/s,z/s);} double dot(Vec3 o){return x*o.x+y*o.y+z*o.z;} Vec3 cross(Vec3 o){return new Vec3(y*o.z - z*o.y, z*o.x - x*o.z, x*o.y - y*o.x);} double length(){return Math.sqrt(x*x+y*y+z*z);} Vec3 normalized(){double l=length(); return l==0? new Vec3(0,0,0):div(l);} Vec3 neg(){return new Vec3(-x,-y,-z);} double get(int i){return i==0?x:(i==1?y:z);} double xzLength2(){return x*x+z*z;} }
-    private Vec3 trace(Ray ray, int depth, java.util.Random rng) {
-        int maxDepth = preview ? 3 : 5;
-        if (depth > maxDepth) return new Vec3(0,0,0);
-        Hit hit = scene.intersect(ray);
-        if (!hit.hit) return scene.background(ray);
+    // Indexed triangle mesh in flat primitive arrays with its own BVH over the triangles, so a mesh costs a few
+    // arrays instead of an object per triangle. Rays are tested with Moller-Trumbore; position and normal are only
+    // worked out for the closest triangle. Without vertex normals the mesh is flat shaded.
+    static class TriangleMesh implements Shape {
+        final float[] positions; // x,y,z per vertex
+        final float[] normals;   // x,y,z per vertex, or null
+        final int[] indices;     // three vertex indices per triangle
+        final int triangleCount;
+        Material m;
+        private final Bvh bvh;
+        private Aabb box;
 
-        Vec3 p = hit.position;
-        Vec3 n = hit.normal;
-        Material m = hit.material;
-        Vec3 base = m.albedoAt(p);
-        Vec3 color = base.mul(0.05);
-
-        for (Light light : scene.lights) {
-            int samples = (softShadows && light.radius > 0.0) ? (preview ? 4 : 16) : 1;
-            Vec3 accum = new Vec3(0,0,0);
-            for (int i=0;i<samples;i++) {
-                Vec3 lp = light.samplePosition(rng);
-                Vec3 L = lp.sub(p);
-                double dist = L.length();
-                L = L.div(dist);
-                if (!scene.occluded(new Ray(p.add(n.mul(1e-4)), L), dist - 2e-4)) {
-                    double atten = 1.0 / (light.constant + light.linear * dist + light.quadratic * dist * dist);
-                    double ndotl = Math.max(0.0, n.dot(L));
-                    Vec3 diff = base.mul(m.kd * ndotl);
-                    Vec3 V = ray.direction.neg();
-                    Vec3 H = V.add(L).normalized();
-                    double spec = Math.pow(Math.max(0.0, n.dot(H)), m.shininess) * m.ks;
-                    Vec3 contrib = diff.add(new Vec3(spec, spec, spec)).mul(light.color).mul(atten);
-                    accum = accum.add(contrib);
-                }
-            }
-            color = color.add(accum.div(samples));
-        }
-
-        Vec3 V = ray.direction.neg();
-        double kr = fresnel(V, n, m.ior);
-        Vec3 refl = new Vec3(0,0,0);
-        if (m.reflectivity > 0.0 || kr > 0.0) {
-            int glossySamples = m.glossyRoughness > 0.0 ? (preview ? 2 : 8) : 1;
-            for (int i=0;i<glossySamples;i++) {
-                Vec3 R = reflect(ray.direction, n);
-                if (m.glossyRoughness > 0.0) R = sampleHemisphereCone(R, m.glossyRoughness, rng);
-                refl = refl.add(trace(new Ray(p.add(n.mul(1e-4)), R), depth+1, rng));
+        TriangleMesh(float[] positions, float[] normals, int[] indices, Material m) {
+            if (positions.length % 3 != 0 || indices.length % 3 != 0) throw new IllegalArgumentException("Positions and indices must come in threes");
+            if (normals != null && normals.length != positions.length) throw new IllegalArgumentException("Need one normal per vertex");
+            int vertices = positions.length / 3;
+            for (int v : indices) if (v < 0 || v >= vertices) throw new IllegalArgumentException("Vertex index " + v + " out of range");
+            this.positions = positions;
+            this.normals = normals;
+            this.indices = indices;
+            this.m = m;
+            triangleCount = indices.length / 3;
+            double[] triBounds = new double[triangleCount * 6];
+            for (int i = 0; i < triangleCount; i++) {
+                int o = i * 6;
+                for (int a = 0; a < 3; a++) { triBounds[o + a] = Double.POSITIVE_INFINITY; triBounds[o + 3 + a] = Double.NEGATIVE_INFINITY; }
+                for (int k = 0; k < 3; k++) {
+                    int v = indices[i * 3 + k] * 3;
+                    for (int a = 0; a < 3; a++) {
+                        triBounds[o + a] = Math.min(triBounds[o + a], positions[v + a]);
+                        triBounds[o + 3 + a] = Math.max(triBounds[o + 3 + a], positions[v + a]);
+                    }
+                }
             }
-            refl = refl.div(glossySamples);
+            bvh = new Bvh(triBounds, triangleCount);
+            box = bvh.nodeCount == 0 ? null : new Aabb(new Vec3(bvh.bounds[0], bvh.bounds[1], bvh.bounds[2]), new Vec3(bvh.bounds[3], bvh.bounds[4], bvh.bounds[5]));
         }
-        Vec3 refr = new Vec3(0,0,0);
-        if (m.refractivity > 0.0) {
-            boolean into = n.dot(V) > 0;
-            double n1 = into ? 1.0 : m.ior;
-            double n2 = into ? m.ior : 1.0;
-            Vec3 nn = into ? n : n.neg();
-            Vec3 T = refract(ray.direction, nn, n1, n2);
-            if (T != null) {
-                refr = trace(new Ray(p.add(T.mul(1e-4)), T), depth+1, rng);
-            } else {
-                kr = 1.0;
+
+        public boolean intersect(Ray ray, double tMin, double tMax, Hit out) { return intersect(ray, tMin, tMax, out, null); }
+
+        public boolean intersect(Ray ray, double tMin, double tMax, Hit out, TraceContext ctx) {
+            if (bvh.nodeCount == 0) return false;
+            int[] stack;
+            double[] stackT;
+            if (ctx != null) { ctx.ensureMeshStack(bvh.depth + 1); stack = ctx.meshStack; stackT = ctx.meshStackT; }
+            else { stack = new int[bvh.depth + 1]; stackT = new double[bvh.depth + 1]; }
+            Vec3 o = ray.origin, d = ray.direction;
+            double ox = o.x, oy = o.y, oz = o.z, dx = d.x, dy = d.y, dz = d.z;
+            double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+            double best = tMax;
+            int bestTri = -1, visits = 0, tests = 0, sp = 0, node = 0;
+            double tNode = bvh.hitBounds(0, ox, oy, oz, ix, iy, iz, best);
+            while (true) {
+                if (tNode <= best) {
+                    visits++;
+                    int count = bvh.count[node];
+                    if (count == 0) {
+                        int left = bvh.first[node], right = left + 1;
+                        double tl = bvh.hitBounds(left, ox, oy, oz, ix, iy, iz, best);
+                        double tr = bvh.hitBounds(right, ox, oy, oz, ix, iy, iz, best);
+                        if (tr < tl) { int tmp = left; left = right; right = tmp; double tt = tl; tl = tr; tr = tt; }
+                        if (tr != Double.POSITIVE_INFINITY) { stack[sp] = right; stackT[sp] = tr; sp++; }
+                        if (tl != Double.POSITIVE_INFINITY) { node = left; tNode = tl; continue; }
+                    } else {
+                        int start = bvh.first[node];
+                        tests += count;
+                        for (int i = start; i < start + count; i++) {
+                            double t = triangleDistance(bvh.prims[i], ox, oy, oz, dx, dy, dz, tMin, best);
+                            if (t == Double.POSITIVE_INFINITY) continue;
+                            best = t; bestTri = bvh.prims[i];
+                        }
+                    }
+                }
+                if (sp == 0) break;
+                sp--;
+                node = stack[sp]; tNode = stackT[sp];
             }
+            if (ctx != null) { ctx.nodeVisits += visits; ctx.shapeTests += tests; }
+            if (bestTri < 0) return false;
+            // Only the winning triangle gets a position, normal and material
+            out.hit = true; out.t = best; out.material = m;
+            out.position.set(ox + dx * best, oy + dy * best, oz + dz * best);
+            float[] pos = positions;
+            int tri = bestTri * 3;
+            int a = indices[tri] * 3, b = indices[tri + 1] * 3, c = indices[tri + 2] * 3;
+            double e1x = pos[b] - pos[a], e1y = pos[b + 1] - pos[a + 1], e1z = pos[b + 2] - pos[a + 2];
+            double e2x = pos[c] - pos[a], e2y = pos[c + 1] - pos[a + 1], e2z = pos[c + 2] - pos[a + 2];
+            double gx = e1y * e2z - e1z * e2y, gy = e1z * e2x - e1x * e2z, gz = e1x * e2y - e1y * e2x;
+            Vec3 n = out.normal;
+            if (normals == null) n.set(gx, gy, gz);
+            else {
+                // Barycentrics of the hit, with the same arithmetic as triangleDistance()
+                double ax = pos[a], ay = pos[a + 1], az = pos[a + 2];
+                double f1x = pos[b] - ax, f1y = pos[b + 1] - ay, f1z = pos[b + 2] - az;
+                double f2x = pos[c] - ax, f2y = pos[c + 1] - ay, f2z = pos[c + 2] - az;
+                double px = dy * f2z - dz * f2y, py = dz * f2x - dx * f2z, pz = dx * f2y - dy * f2x;
+                double inv = 1.0 / (f1x * px + f1y * py + f1z * pz);
+                double tx = ox - ax, ty = oy - ay, tz = oz - az;
+                double u = (tx * px + ty * py + tz * pz) * inv;
+                double qx = ty * f1z - tz * f1y, qy = tz * f1x - tx * f1z, qz = tx * f1y - ty * f1x;
+                double v = (dx * qx + dy * qy + dz * qz) * inv;
+                double w = 1.0 - u - v;
+                float[] nr = normals;
+                n.set(w * nr[a] + u * nr[b] + v * nr[c], w * nr[a + 1] + u * nr[b + 1] + v * nr[c + 1], w * nr[a + 2] + u * nr[b + 2] + v * nr[c + 2]);
+            }
+            n.normalizeLocal();
+            // Refraction needs the outward side, like the sphere's normal: the vertex normals say which side that is,
+            // or counter-clockwise winding when there are none. Other materials are shaded from whichever side the
+            // ray arrives, like the plane, so open meshes work; the test uses the geometric normal because an
+            // interpolated one can lean away from the viewer near silhouettes.
+            if (m.refractivity <= 0.0 && (n.x * gx + n.y * gy + n.z * gz) * (gx * dx + gy * dy + gz * dz) > 0) n.set(-n.x, -n.y, -n.z);
+            return true;
         }
-        double reflectW = m.reflectivity * (m.refractivity > 0.0 ? kr : 1.0);
-        double refractW = m.refractivity * (1.0 - kr);
-        color = color.add(refl.mul(reflectW));
-        color = color.add(refr.mul(refractW));
-        return color;
-    }
 
-    // Compute look direction from yaw/pitch and update camera.lookAt
-    private void updateCameraLook() {
-        double cy = Math.cos(Math.toRadians(yaw));
-        double sy = Math.sin(Math.toRadians(yaw));
-        double cp = Math.cos(Math.toRadians(pitch));
-        double sp = Math.sin(Math.toRadians(pitch));
-        Vec3 dir = new Vec3(sy * cp, sp, -cy * cp); // Y-up
-        camera.lookAt = camera.eye.add(dir);
-    }
+        // Shadow rays: any triangle in range will do, so children are taken in fixed order and the walk stops there
+        public boolean occludes(Ray ray, double tMin, double tMax, TraceContext ctx) {
+            if (bvh.nodeCount == 0) return false;
+            int[] stack;
+            if (ctx != null) { ctx.ensureMeshStack(bvh.depth + 2); stack = ctx.meshStack; }
+            else stack = new int[bvh.depth + 2];
+            Vec3 o = ray.origin, d = ray.direction;
+            double ox = o.x, oy = o.y, oz = o.z, dx = d.x, dy = d.y, dz = d.z;
+            double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+            int visits = 0, tests = 0, sp = 0;
+            boolean hit = false;
+            stack[sp++] = 0;
+            search:
+            while (sp > 0) {
+                int node = stack[--sp];
+                if (bvh.hitBounds(node, ox, oy, oz, ix, iy, iz, tMax) == Double.POSITIVE_INFINITY) continue;
+                visits++;
+                int count = bvh.count[node];
+                if (count == 0) {
+                    stack[sp++] = bvh.first[node] + 1;
+                    stack[sp++] = bvh.first[node];
+                } else {
+                    int start = bvh.first[node];
+                    for (int i = start; i < start + count; i++) {
+                        tests++;
+                        if (triangleDistance(bvh.prims[i], ox, oy, oz, dx, dy, dz, tMin, tMax) != Double.POSITIVE_INFINITY) { hit = true; break search; }
+                    }
+                }
+            }
+            if (ctx != null) { ctx.nodeVisits += visits; ctx.shapeTests += tests; }
+            return hit;
+        }
 
-    // Move using WASD + QE; returns true if moved/rotated
-    private boolean handleMovement() {
-        boolean changed = false;
-        double step = 0.15;
-        // Direction vectors from yaw (ignore pitch for horizontal move)
-        double cy = Math.cos(Math.toRadians(yaw));
-        double sy = Math.sin(Math.toRadians(yaw));
-        Vec3 forward = new Vec3(sy, 0, -cy); // -Z forward when yaw=0 -> forward along -Z
-        Vec3 right = new Vec3(cy, 0, sy);
-        if (keyW || keyUpArr) { camera.eye = camera.eye.add(forward.mul(step)); changed = true; }
-        if (keyS || keyDownArr) { camera.eye = camera.eye.sub(forward.mul(step)); changed = true; }
-        if (keyA) { camera.eye = camera.eye.sub(right.mul(step)); changed = true; }
-        if (keyD) { camera.eye = camera.eye.add(right.mul(step)); changed = true; }
-        if (keyQ) { camera.eye = camera.eye.add(new Vec3(0, step, 0)); changed = true; }
-        if (keyE) { camera.eye = camera.eye.add(new Vec3(0, -step, 0)); changed = true; }
-        double turnSpeed = 2.5;
-        if (keyLeftArr) { yaw -= turnSpeed; changed = true; }
-        if (keyRightArr) { yaw += turnSpeed; changed = true; }
-        if (changed || rightMouseHeld) {
-            updateCameraLook();
+        // Moller-Trumbore: t of the hit with triangle tri in [tMin, tMax], or +infinity
+        private double triangleDistance(int tri, double ox, double oy, double oz, double dx, double dy, double dz, double tMin, double tMax) {
+            float[] pos = positions;
+            int i = tri * 3;
+            int a = indices[i] * 3, b = indices[i + 1] * 3, c = indices[i + 2] * 3;
+            double ax = pos[a], ay = pos[a + 1], az = pos[a + 2];
+            double e1x = pos[b] - ax, e1y = pos[b + 1] - ay, e1z = pos[b + 2] - az;
+            double e2x = pos[c] - ax, e2y = pos[c + 1] - ay, e2z = pos[c + 2] - az;
+            double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+            double det = e1x * px + e1y * py + e1z * pz;
+            if (det == 0.0) return Double.POSITIVE_INFINITY; // ray parallel to the triangle
+            double inv = 1.0 / det;
+            double tx = ox - ax, ty = oy - ay, tz = oz - az;
+            double u = (tx * px + ty * py + tz * pz) * inv;
+            if (u < 0.0 || u > 1.0) return Double.POSITIVE_INFINITY;
+            double qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+            double v = (dx * qx + dy * qy + dz * qz) * inv;
+            if (v < 0.0 || u + v > 1.0) return Double.POSITIVE_INFINITY;
+            double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+            if (t < tMin || t > tMax) return Double.POSITIVE_INFINITY;
+            return t;
         }
-        return changed;
-    }
 
-    private static Vec3 sampleHemisphereCone(Vec3 dir, double roughness, java.util.Random rng) {
-        double coneAngle = Math.max(1e-3, roughness * 0.5);
-        Vec3 w = dir.normalized();
-        Vec3 u = (Math.abs(w.x) > 0.1 ? new Vec3(0,1,0) : new Vec3(1,0,0)).cross(w).normalized();
-        Vec3 v = w.cross(u);
-        double xi1 = rng.nextDouble();
-        double xi2 = rng.nextDouble();
-        double cosTheta = 1.0 - xi1 * (1.0 - Math.cos(coneAngle));
-        double sinTheta = Math.sqrt(Math.max(0.0, 1.0 - cosTheta * cosTheta));
-        double phi = 2.0 * Math.PI * xi2;
-        Vec3 local = new Vec3(Math.cos(phi) * sinTheta, Math.sin(phi) * sinTheta, cosTheta);
-        return u.mul(local.x).add(v.mul(local.y)).add(w.mul(local.z)).normalized();
-    }
+        public Aabb bounds() { return box; }
+        public Material getMaterial() { return m; }
 
-    private static double fresnel(Vec3 V, Vec3 N, double n2) {
-        double cosi = clamp(N.dot(V), -1.0, 1.0);
-        double etai = 1.0, etat = n2;
-        if (cosi > 0) { double tmp = etai; etai = etat; etat = tmp; }
-        double sint = etai / etat * Math.sqrt(Math.max(0.0, 1 - cosi * cosi));
-        if (sint >= 1.0) return 1.0;
-        double cost = Math.sqrt(Math.max(0.0, 1 - sint * sint));
-        cosi = Math.abs(cosi);
-        double Rs = ((etat * cosi) - (etai * cost)) / ((etat * cosi) + (etai * cost));
-        double Rp = ((etai * cosi) - (etat * cost)) / ((etai * cosi) + (etat * cost));
-        return (Rs*Rs + Rp*Rp) * 0.5;
-    }
+        // Scales the mesh uniformly about the origin and then moves it by offset. Such a map keeps every split of
+        // the BVH valid, so only the node boxes are updated instead of building it again.
+        void scaleAndMove(double scale, Vec3 offset) {
+            if (!(scale > 0)) throw new IllegalArgumentException("Scale must be positive");
+            double[] off = {offset.x, offset.y, offset.z};
+            for (int i = 0; i < positions.length; i++) positions[i] = (float) (positions[i] * scale + off[i % 3]);
+            double[] nb = bvh.bounds;
+            // Every box side is some vertex coordinate, so the same arithmetic and rounding keeps the boxes exact
+            for (int i = 0; i < nb.length; i++) nb[i] = (float) (nb[i] * scale + off[i % 3]);
+            if (box != null) box = new Aabb(new Vec3(nb[0], nb[1], nb[2]), new Vec3(nb[3], nb[4], nb[5]));
+        }
 
-    private static Vec3 reflect(Vec3 I, Vec3 N) { return I.sub(N.mul(2.0 * I.dot(N))).normalized(); }
-    private static Vec3 refract(Vec3 I, Vec3 N, double n1, double n2) {
-        double eta = n1 / n2;
-        double cosi = -Math.max(-1.0, Math.min(1.0, I.dot(N)));
-        double k = 1.0 - eta * eta * (1.0 - cosi * cosi);
-        if (k < 0) return null;
-        return I.mul(eta).add(N.mul(eta * cosi - Math.sqrt(k))).normalized();
-    }
-    private static double clamp(double v, double a, double b) { return Math.max(a, Math.min(b, v)); }
-    private void setupScene() {
-        camera.eye = new Vec3(0, 1.2, 6.5);
-        camera.lookAt = new Vec3(0, 1.0, 0);
+        // Sphere of rings x segments quads, two triangles each, with smooth normals
+        static TriangleMesh sphere(Vec3 c, double r, int rings, int segments, Material m) {
+            if (rings < 2 || segments < 3) throw new IllegalArgumentException("A sphere mesh needs at least 2 rings and 3 segments");
+            int cols = segments + 1;
+            float[] pos = new float[(rings + 1) * cols * 3];
+            float[] nrm = new float[pos.length];
+            for (int i = 0; i <= rings; i++) {
+                double theta = Math.PI * i / rings;
+                for (int j = 0; j <= segments; j++) {
+                    double phi = 2.0 * Math.PI * j / segments;
+                    double nx = Math.sin(theta) * Math.cos(phi), ny = Math.cos(theta), nz = -Math.sin(theta) * Math.sin(phi);
+                    int o = (i * cols + j) * 3;
+                    nrm[o] = (float) nx; nrm[o + 1] = (float) ny; nrm[o + 2] = (float) nz;
+                    pos[o] = (float) (c.x + r * nx); pos[o + 1] = (float) (c.y + r * ny); pos[o + 2] = (float) (c.z + r * nz);
+                }
+            }
+            int[] idx = new int[rings * segments * 6];
+            int k = 0;
+            for (int i = 0; i < rings; i++) {
+                for (int j = 0; j < segments; j++) {
+                    int v00 = i * cols + j, v01 = v00 + 1, v10 = v00 + cols, v11 = v10 + 1;
+                    idx[k++] = v00; idx[k++] = v10; idx[k++] = v11;
+                    idx[k++] = v00; idx[k++] = v11; idx[k++] = v01;
+                }
+            }
+            return new TriangleMesh(pos, nrm, idx, m);
+        }
+
+        // Wavefront OBJ: v, vn and f records (polygons are split into fans, negative indices count from the end);
+        // everything else is ignored. Corners that pair one position with different normals get separate vertices.
+        static TriangleMesh loadObj(java.nio.file.Path path, Material m) throws IOException {
+            FloatList v = new FloatList(), vn = new FloatList(), pos = new FloatList(), nrm = new FloatList();
+            IntList idx = new IntList();
+            java.util.Map<Long, Integer> vertexOf = new java.util.HashMap<>();
+            int[] face = new int[16];
+            int lineNo = 0;
+            try (java.io.BufferedReader in = java.nio.file.Files.newBufferedReader(path)) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    lineNo++;
+                    String[] tok = line.trim().split("\\s+");
+                    switch (tok[0]) {
+                        case "v": for (int a = 1; a <= 3; a++) v.add(Float.parseFloat(tok[a])); break;
+                        case "vn": for (int a = 1; a <= 3; a++) vn.add(Float.parseFloat(tok[a])); break;
+                        case "f": {
+                            int corners = tok.length - 1;
+                            if (corners < 3) throw new IOException(path + ":" + lineNo + ": face with fewer than 3 corners");
+                            if (face.length < corners) face = new int[corners];
+                            for (int k = 0; k < corners; k++) {
+                                String[] ref = tok[k + 1].split("/");
+                                int p = objIndex(ref[0], v.size / 3, path, lineNo);
+                                int q = ref.length > 2 && !ref[2].isEmpty() ? objIndex(ref[2], vn.size / 3, path, lineNo) : -1;
+                                Integer known = vertexOf.get(((long) p << 32) | (q & 0xFFFFFFFFL));
+                                if (known == null) {
+                                    known = pos.size / 3;
+                                    vertexOf.put(((long) p << 32) | (q & 0xFFFFFFFFL), known);
+                                    for (int a = 0; a < 3; a++) pos.add(v.data[p * 3 + a]);
+                                    for (int a = 0; a < 3; a++) nrm.add(q >= 0 ? vn.data[q * 3 + a] : 0f);
+                                }
+                                face[k] = known;
+                            }
+                            for (int k = 1; k + 1 < corners; k++) { idx.add(face[0]); idx.add(face[k]); idx.add(face[k + 1]); }
+                            break;
+                        }
+                        default: break;
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException(path + ":" + lineNo + ": malformed record", e);
+            }
+            // Normals are used only when every vertex has one
+            boolean allNormals = vn.size > 0;
+            for (Long key : vertexOf.keySet()) if ((int) (long) key < 0) { allNormals = false; break; }
+            return new TriangleMesh(pos.toArray(), allNormals ? nrm.toArray() : null, idx.toArray(), m);
+        }
+
+        private static int objIndex(String s, int count, java.nio.file.Path path, int lineNo) throws IOException {
+            int i = Integer.parseInt(s);
+            int r = i < 0 ? count + i : i - 1;
+            if (r < 0 || r >= count) throw new IOException(path + ":" + lineNo + ": index " + s + " out of range");
+            return r;
+        }
+    }
+
+    // Placement of a shared shape under an affine transform. The shape (typically a TriangleMesh with its own BVH)
+    // is the bottom level, and the scene BVH over the instances' world bounds the top level, so N copies cost N of
+    // these small objects instead of N copies of the geometry. Rays are moved into object space on entry and the
+    // hit is moved back.
+    static class Instance implements Shape {
+        final Shape object;
+        final double[] toWorld = new double[12];  // row-major 3x4: linear part, then translation in column 3
+        final double[] toObject = new double[12];
+        private Aabb box;
+
+        Instance(Shape object, double[] toWorld) {
+            if (object instanceof Instance) throw new IllegalArgumentException("Instances of instances are not supported");
+            if (object.bounds() == null) throw new IllegalArgumentException("Only bounded shapes can be instanced");
+            this.object = object;
+            setTransform(toWorld);
+        }
+
+        // Moves the instance; the scene's BVH sees the new bounds at its next animate() or build()
+        void setTransform(double[] toWorld) {
+            if (toWorld.length != 12) throw new IllegalArgumentException("Transform must be 3x4");
+            Aabb b = object.bounds();
+            double[] m = toWorld, r = toObject;
+            double c00 = m[5] * m[10] - m[6] * m[9], c01 = m[6] * m[8] - m[4] * m[10], c02 = m[4] * m[9] - m[5] * m[8];
+            double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+            if (Math.abs(det) < 1e-12) throw new IllegalArgumentException("Transform is singular");
+            System.arraycopy(toWorld, 0, this.toWorld, 0, 12);
+            double inv = 1.0 / det;
+            r[0] = c00 * inv; r[1] = (m[2] * m[9] - m[1] * m[10]) * inv; r[2] = (m[1] * m[6] - m[2] * m[5]) * inv;
+            r[4] = c01 * inv; r[5] = (m[0] * m[10] - m[2] * m[8]) * inv; r[6] = (m[2] * m[4] - m[0] * m[6]) * inv;
+            r[8] = c02 * inv; r[9] = (m[1] * m[8] - m[0] * m[9]) * inv; r[10] = (m[0] * m[5] - m[1] * m[4]) * inv;
+            for (int i = 0; i < 3; i++) r[i * 4 + 3] = -(r[i * 4] * m[3] + r[i * 4 + 1] * m[7] + r[i * 4 + 2] * m[11]);
+            // World box around the eight transformed corners of the object box
+            double[] lo = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+            double[] hi = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            for (int k = 0; k < 8; k++) {
+                double x = (k & 1) == 0 ? b.min.x : b.max.x, y = (k & 2) == 0 ? b.min.y : b.max.y, z = (k & 4) == 0 ? b.min.z : b.max.z;
+                for (int a = 0; a < 3; a++) {
+                    double w = m[a * 4] * x + m[a * 4 + 1] * y + m[a * 4 + 2] * z + m[a * 4 + 3];
+                    lo[a] = Math.min(lo[a], w); hi[a] = Math.max(hi[a], w);
+                }
+            }
+            box = new Aabb(new Vec3(lo[0], lo[1], lo[2]), new Vec3(hi[0], hi[1], hi[2]));
+        }
+
+        // Rotation by yaw radians about +Y, then uniform scale, then translation to (x, y, z)
+        static double[] placement(double x, double y, double z, double yaw, double scale) {
+            double c = Math.cos(yaw) * scale, s = Math.sin(yaw) * scale;
+            return new double[] { c, 0, s, x,  0, scale, 0, y,  -s, 0, c, z };
+        }
+
+        static Instance place(Shape object, double x, double y, double z, double yaw, double scale) {
+            return new Instance(object, placement(x, y, z, yaw, scale));
+        }
+
+        public boolean intersect(Ray ray, double tMin, double tMax, Hit out) { return intersect(ray, tMin, tMax, out, null); }
+
+        public boolean intersect(Ray ray, double tMin, double tMax, Hit out, TraceContext ctx) {
+            Vec3 o = ray.origin, d = ray.direction;
+            double[] m = toObject;
+            double dx = m[0] * d.x + m[1] * d.y + m[2] * d.z, dy = m[4] * d.x + m[5] * d.y + m[6] * d.z, dz = m[8] * d.x + m[9] * d.y + m[10] * d.z;
+            // Ray keeps unit directions, so object-space distances are world distances times len
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            Ray local = ctx != null ? ctx.objectRay : new Ray();
+            local.set(m[0] * o.x + m[1] * o.y + m[2] * o.z + m[3], m[4] * o.x + m[5] * o.y + m[6] * o.z + m[7], m[8] * o.x + m[9] * o.y + m[10] * o.z + m[11], dx, dy, dz);
+            if (!object.intersect(local, tMin * len, tMax * len, out, ctx)) return false;
+            double t = out.t / len;
+            out.t = t;
+            out.position.set(o.x + d.x * t, o.y + d.y * t, o.z + d.z * t);
+            // Normals go back with the inverse transpose, which keeps them perpendicular under non-uniform scale
+            Vec3 n = out.normal;
+            n.set(m[0] * n.x + m[4] * n.y + m[8] * n.z, m[1] * n.x + m[5] * n.y + m[9] * n.z, m[2] * n.x + m[6] * n.y + m[10] * n.z).normalizeLocal();
+            return true;
+        }
+
+        public boolean occludes(Ray ray, double tMin, double tMax, TraceContext ctx) {
+            Vec3 o = ray.origin, d = ray.direction;
+            double[] m = toObject;
+            double dx = m[0] * d.x + m[1] * d.y + m[2] * d.z, dy = m[4] * d.x + m[5] * d.y + m[6] * d.z, dz = m[8] * d.x + m[9] * d.y + m[10] * d.z;
+            double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            Ray local = ctx != null ? ctx.objectRay : new Ray();
+            local.set(m[0] * o.x + m[1] * o.y + m[2] * o.z + m[3], m[4] * o.x + m[5] * o.y + m[6] * o.z + m[7], m[8] * o.x + m[9] * o.y + m[10] * o.z + m[11], dx, dy, dz);
+            return object.occludes(local, tMin * len, tMax * len, ctx);
+        }
+
+        public Aabb bounds() { return box; }
+        public Vec3 albedoAt(Vec3 p) { return object.albedoAt(p); }
+        public Material getMaterial() { return object.getMaterial(); }
+    }
+
+    static class FloatList {
+        float[] data = new float[1024]; int size;
+        void add(float f) { if (size == data.length) data = java.util.Arrays.copyOf(data, size * 2); data[size++] = f; }
+        float[] toArray() { return java.util.Arrays.copyOf(data, size); }
+    }
+
+    static class IntList {
+        int[] data = new int[1024]; int size;
+        void add(int i) { if (size == data.length) data = java.util.Arrays.copyOf(data, size * 2); data[size++] = i; }
+        int[] toArray() { return java.util.Arrays.copyOf(data, size); }
+    }
+
+    static class Ray { final Vec3 origin,direction; Ray(){origin=new Vec3(0,0,0);direction=new Vec3(0,0,-1);} Ray(Vec3 o,Vec3 d){origin=o;direction=d.normalized();} Vec3 at(double t){return origin.add(direction.mul(t));}
+        Ray set(double ox,double oy,double oz,double dx,double dy,double dz){origin.set(ox,oy,oz);direction.set(dx,dy,dz).normalizeLocal();return this;} }
+    static class Vec3 { double x,y,z; Vec3(double x,double y,double z){this.x=x;this.y=y;this.z=z;} Vec3 add(Vec3 o){return new Vec3(x+o.x,y+o.y,z+o.z);} Vec3 sub(Vec3 o){return new Vec3(x-o.x,y-o.y,z-o.z);} Vec3 mul(double s){return new Vec3(x*s,y*s,z*s);} Vec3 mul(Vec3 o){return new Vec3(x*o.x,y*o.y,z*o.z);} Vec3 div(double s){return new Vec3(x/s,y/s,z/s);} double dot(Vec3 o){return x*o.x+y*o.y+z*o.z;} Vec3 cross(Vec3 o){return new Vec3(y*o.z - z*o.y, z*o.x - x*o.z, x*o.y - y*o.x);} double length(){return Math.sqrt(x*x+y*y+z*z);} Vec3 normalized(){double l=length(); return l==0? new Vec3(0,0,0):div(l);} Vec3 neg(){return new Vec3(-x,-y,-z);} double get(int i){return i==0?x:(i==1?y:z);} double xzLength2(){return x*x+z*z;}
+        // In-place variants for the allocation-free trace path
+        Vec3 set(double x,double y,double z){this.x=x;this.y=y;this.z=z;return this;} Vec3 set(Vec3 o){return set(o.x,o.y,o.z);} Vec3 normalizeLocal(){double l=length(); return l==0? set(0,0,0):set(x/l,y/l,z/l);} }
+
+    // Source of sample values in [0,1). Values depend only on (seed, pixel, dimension, index), so tiles can be rendered
+    // in any order on any thread. For a fixed pixel and dimension, consecutive indices are stratified by the
+    // low-discrepancy implementations; dimensions 2k and 2k+1 form a 2D pair.
+    interface Sampler {
+        void startPixel(long seed, int x, int y);
+        double get(int dimension, long index);
+    }
+
+    enum SamplerKind {
+        RANDOM("random"), HALTON("halton"), SOBOL("sobol"), BLUE_NOISE("bluenoise");
+
+        final String label;
+        SamplerKind(String label) { this.label = label; }
+
+        Sampler create() {
+            switch (this) {
+                case RANDOM: return new RandomSampler();
+                case HALTON: return new HaltonSampler();
+                case SOBOL: return new SobolSampler();
+                default: return new BlueNoiseSampler();
+            }
+        }
+
+        static SamplerKind parse(String label) {
+            for (SamplerKind k : values()) if (k.label.equals(label)) return k;
+            throw new IllegalArgumentException("Unknown sampler " + label);
+        }
+    }
+
+    // SplitMix64 finalizer, the hash behind all per-pixel scrambles
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    static long pixelHash(long seed, int x, int y) {
+        return mix64(seed + ((long) y << 32 | (x & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L);
+    }
+
+    // 32-bit fraction to [0,1) without rounding up to 1.0
+    static double toUnit(int bits) { return (bits & 0xFFFFFFFFL) * 0x1p-32; }
+
+    // White noise from a stateless hash: no shared seed and no CAS, unlike java.util.Random
+    static class RandomSampler implements Sampler {
+        private long pixel;
+        public void startPixel(long seed, int x, int y) { pixel = pixelHash(seed, x, y); }
+        public double get(int dimension, long index) {
+            return (mix64(pixel ^ mix64(index * 0x9E3779B97F4A7C15L + dimension)) >>> 11) * 0x1p-53;
+        }
+    }
+
+    // Radical inverse in the dimension's prime base, Cranley-Patterson rotated per pixel and dimension. Past the prime
+    // table, where bases would be large enough to correlate badly anyway, dimensions fall back to hashed white noise
+    // so no dimension repeats another's sequence.
+    static class HaltonSampler implements Sampler {
+        private static final int[] PRIMES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53, 59, 61, 67, 71, 73, 79, 83, 89, 97, 101, 103, 107, 109, 113, 127, 131};
+        private long pixel;
+        public void startPixel(long seed, int x, int y) { pixel = pixelHash(seed, x, y); }
+        public double get(int dimension, long index) {
+            if (dimension >= PRIMES.length) return (mix64(pixel ^ mix64(index * 0x9E3779B97F4A7C15L + dimension)) >>> 11) * 0x1p-53;
+            int base = PRIMES[dimension];
+            double inv = 1.0 / base, f = inv, r = 0.0;
+            for (long i = index; i > 0; i /= base, f *= inv) r += f * (i % base);
+            double v = r + (mix64(pixel + dimension) >>> 11) * 0x1p-53;
+            return v >= 1.0 ? v - 1.0 : v;
+        }
+    }
+
+    // Owen-scrambled Sobol (0,2)-sequence with hash-based scrambling (Burley 2020). Higher dimensions are padded:
+    // every 2D pair reuses the same two Sobol dimensions under an independent index shuffle and scramble.
+    static class SobolSampler implements Sampler {
+        private long pixel;
+        public void startPixel(long seed, int x, int y) { pixel = pixelHash(seed, x, y); }
+        public double get(int dimension, long index) {
+            int pairSeed = (int) mix64(pixel + (dimension >> 1) * 0x632BE59BD9B4E019L);
+            int i = nestedUniformScramble((int) index, pairSeed);
+            int v = (dimension & 1) == 0 ? Integer.reverse(i) : sobolDim1(i);
+            return toUnit(nestedUniformScramble(v, (int) mix64(pixel ^ (dimension + 1) * 0xD1B54A32D192ED03L)));
+        }
+
+        private static int sobolDim1(int index) {
+            int r = 0;
+            for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1) if ((index & 1) != 0) r ^= v;
+            return r;
+        }
+
+        // Owen scrambling as a hash applied to the bit-reversed value (Laine-Karras permutation)
+        private static int nestedUniformScramble(int x, int seed) {
+            x = Integer.reverse(x);
+            x += seed;
+            x ^= x * 0x6c50b47c;
+            x ^= x * 0xb82f1e52;
+            x ^= x * 0xc7afe638;
+            x ^= x * 0x8d22f6e6;
+            return Integer.reverse(x);
+        }
+    }
+
+    // Screen-space blue noise: a tiled void-and-cluster rank mask, offset per dimension and advanced per sample
+    // index along the R2 sequence so successive samples stay well distributed
+    static class BlueNoiseSampler implements Sampler {
+        private static final int SIZE = 64;
+        private static final double[] ALPHA = {0.7548776662466927, 0.5698402909980532}; // 1/g and 1/g^2, g = plastic number
+        private int px, py;
+        private long pixel;
+        public void startPixel(long seed, int x, int y) { px = x; py = y; pixel = mix64(seed); }
+        public double get(int dimension, long index) {
+            long h = mix64(pixel + dimension * 0x9E3779B97F4A7C15L);
+            int tx = (int) ((px + (h & 0xFFFF)) & (SIZE - 1)), ty = (int) ((py + ((h >>> 16) & 0xFFFF)) & (SIZE - 1));
+            double v = BlueNoiseMask.RANKS[ty * SIZE + tx] + (index % 1_000_003L) * ALPHA[dimension & 1];
+            return v - Math.floor(v);
+        }
+    }
+
+    // Built once on first use: pixels of a toroidal SIZE x SIZE tile are ranked by repeatedly filling the largest void,
+    // measured with a Gaussian energy, which gives a blue-noise ordering
+    static class BlueNoiseMask {
+        static final double[] RANKS = build(64, 1.9);
+
+        private static double[] build(int size, double sigma) {
+            int n = size * size;
+            double[] kernel = new double[n];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int dx = Math.min(x, size - x), dy = Math.min(y, size - y);
+                    kernel[y * size + x] = Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+                }
+            }
+            double[] energy = new double[n];
+            boolean[] taken = new boolean[n];
+            double[] ranks = new double[n];
+            int next = (int) ((mix64(42) >>> 1) % n);
+            for (int rank = 0; rank < n; rank++) {
+                taken[next] = true;
+                ranks[next] = (rank + 0.5) / n;
+                int nx = next % size, ny = next / size;
+                int best = -1;
+                double bestEnergy = Double.POSITIVE_INFINITY;
+                for (int y = 0; y < size; y++) {
+                    int ky = ((y - ny) & (size - 1)) * size;
+                    for (int x = 0; x < size; x++) {
+                        int i = y * size + x;
+                        energy[i] += kernel[ky + ((x - nx) & (size - 1))];
+                        if (!taken[i] && energy[i] < bestEnergy) { bestEnergy = energy[i]; best = i; }
+                    }
+                }
+                next = best;
+            }
+            return ranks;
+        }
+    }
+
+    // Per-thread scratch registers: one frame of temporaries per recursion depth plus BVH traversal stacks
+    static class TraceContext {
+        final Sampler[] samplers = new Sampler[SamplerKind.values().length];
+        Sampler sampler;
+        final Ray primary = new Ray();
+        final Ray shadow = new Ray();
+        final Vec3 color = new Vec3(0,0,0);
+        final Hit scratch = new Hit();
+        // Work since the owning tile started, handed to RenderStats.addTile()
+        long primaryRays, secondaryRays, shadowRays; // closest-hit rays from the camera and from surfaces; shadow tests
+        long nodeVisits, shapeTests;                 // BVH nodes entered, Shape.intersect() or compiled kernel calls;
+                                                     // a mesh adds its own nodes and triangle tests
+        long allocated;                              // bytes this worker allocated while rendering its tiles
+        int[] stack = new int[64];
+        double[] stackT = new double[64];
+        final Ray objectRay = new Ray();             // an Instance's ray in object space
+        int[] meshStack = new int[64];               // a mesh is walked while the scene traversal holds stack
+        double[] meshStackT = new double[64];
+        private TraceFrame[] frames = new TraceFrame[0];
+
+        // Selects the per-thread instance of the requested sampler, creating it on first use
+        void useSampler(SamplerKind kind) {
+            Sampler s = samplers[kind.ordinal()];
+            if (s == null) samplers[kind.ordinal()] = s = kind.create();
+            sampler = s;
+        }
+
+        TraceFrame frame(int depth) {
+            if (depth >= frames.length) {
+                TraceFrame[] grown = java.util.Arrays.copyOf(frames, depth + 1);
+                for (int i = frames.length; i < grown.length; i++) grown[i] = new TraceFrame();
+                frames = grown;
+            }
+            return frames[depth];
+        }
+
+        void ensureStack(int size) {
+            if (stack.length < size) { stack = new int[size]; stackT = new double[size]; }
+        }
+
+        void ensureMeshStack(int size) {
+            if (meshStack.length < size) { meshStack = new int[size]; meshStackT = new double[size]; }
+        }
+    }
+
+    // Edge-aware a-trous wavelet filter (after SVGF, Schied et al. 2017) guided by the first-hit albedo, normal and
+    // depth averaged over each pixel's samples. Radiance is divided by albedo before filtering so textures survive,
+    // and the luminance edge-stopping term scales with the estimated standard deviation of the pixel mean: per-pixel
+    // sample variance once there are two samples, a 3x3 spatial estimate before. As samples accumulate the filter
+    // fades out by itself. Every stage runs over row bands on the render pool.
+    static class Denoiser {
+        static final int LEVELS = 4;
+        static final float SIGMA_LUM = 4f, SIGMA_DEPTH = 0.05f;
+        static final float NORMAL_POWER = 128f;       // normal term (n.n')^128
+        static final float MIN_NORMAL_COS = 0.9f;     // taps on surfaces turned further away are skipped
+        static final float MIN_SIGMA = 1e-4f;         // below this the luminance term rejects every neighbour anyway
+        static final double SPECULAR = 0.5;           // reflectivity + refractivity from which a hit is not filtered
+        static final int STRIDE = 5;                  // demodulated r, g, b, their luminance, variance of the mean
+        final int width, height;
+        // Feature sums over the samples of each pixel. Background samples and hits on mostly specular materials (whose
+        // look comes from what they reflect, not from their own albedo and normal) count as white albedo and zero
+        // normal, and only the remaining hits count towards depth.
+        private final float[] albedoSum, normalSum, depthSum;
+        private final int[] hits;
+        // Per-pixel means built from the sums at the start of run(), with unit normals; depth < 0 marks a pixel left
+        // unfiltered because not all of its samples hit a diffuse surface (silhouettes keep their anti-aliasing)
+        private final float[] albedo, normal, depth;
+        private final ThreadLocal<Halo> halo;
+        private final float[] ping, pong;        // STRIDE floats per pixel
+        private final boolean[] filtered;        // pixel changed by some level, so writeRow has to store it
+        private final boolean[] shownFiltered;   // filtered by the previous run
+        private ForkJoinPool pool;
+        Denoiser(int width, int height) {
+            this.width = width; this.height = height;
+            int pixels = width * height;
+            albedoSum = new float[pixels * 3]; normalSum = new float[pixels * 3]; depthSum = new float[pixels]; hits = new int[pixels];
+            albedo = new float[pixels * 3]; normal = new float[pixels * 3]; depth = new float[pixels];
+            ping = new float[pixels * STRIDE]; pong = new float[pixels * STRIDE];
+            filtered = new boolean[pixels]; shownFiltered = new boolean[pixels];
+            halo = ThreadLocal.withInitial(() -> new Halo(width));
+        }
+
+        // Adds the primary hit of one sample of pixel p; first restarts the sums like storePixel does
+        void storeFeatures(int p, Hit hit, boolean first) {
+            if (first) {
+                albedoSum[p*3] = 0f; albedoSum[p*3 + 1] = 0f; albedoSum[p*3 + 2] = 0f;
+                normalSum[p*3] = 0f; normalSum[p*3 + 1] = 0f; normalSum[p*3 + 2] = 0f;
+                depthSum[p] = 0f; hits[p] = 0;
+            }
+            if (!hit.hit || hit.material.reflectivity + hit.material.refractivity >= SPECULAR) {
+                albedoSum[p*3] += 1f; albedoSum[p*3 + 1] += 1f; albedoSum[p*3 + 2] += 1f;
+                return;
+            }
+            Vec3 a = hit.material.albedoAt(hit.position);
+            albedoSum[p*3] += (float) a.x; albedoSum[p*3 + 1] += (float) a.y; albedoSum[p*3 + 2] += (float) a.z;
+            normalSum[p*3] += (float) hit.normal.x; normalSum[p*3 + 1] += (float) hit.normal.y; normalSum[p*3 + 2] += (float) hit.normal.z;
+            depthSum[p] += (float) hit.t;
+            hits[p]++;
+        }
+
+        // Mean albedo and unit normal of pixel p into the arrays; returns the mean hit distance, or -1 unless all n
+        // samples hit diffuse surfaces
+        float historyFeatures(int p, int n, float[] albedoOut, float[] normalOut) {
+            if (hits[p] != n) return -1f;
+            float nx = normalSum[p*3], ny = normalSum[p*3 + 1], nz = normalSum[p*3 + 2];
+            float nl = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+            normalOut[p*3] = nx / nl; normalOut[p*3 + 1] = ny / nl; normalOut[p*3 + 2] = nz / nl;
+            albedoOut[p*3] = albedoSum[p*3] / n; albedoOut[p*3 + 1] = albedoSum[p*3 + 1] / n; albedoOut[p*3 + 2] = albedoSum[p*3 + 2] / n;
+            return depthSum[p] / n;
+        }
+
+        // Restarts pixel q with the features of history pixel p at distance t, as one diffuse sample
+        void setFeatures(int q, float[] albedoIn, float[] normalIn, int p, float t) {
+            albedoSum[q*3] = albedoIn[p*3]; albedoSum[q*3 + 1] = albedoIn[p*3 + 1]; albedoSum[q*3 + 2] = albedoIn[p*3 + 2];
+            normalSum[q*3] = normalIn[p*3]; normalSum[q*3 + 1] = normalIn[p*3 + 1]; normalSum[q*3 + 2] = normalIn[p*3 + 2];
+            depthSum[q] = t;
+            hits[q] = 1;
+        }
+
+        // One pool pass prepares the features, colour and variance of every row, then each a-trous level is a pass
+        // of its own (it reads rows up to 2^level away from the previous one); the last level also writes the output
+        void run(ForkJoinPool pool, float[] accum, int[] counts, float[] lumSquares, IntBuffer out) {
+            int bands = (height + RowTask.BAND - 1) / RowTask.BAND;
+            pool.invoke(new RowTask(0, bands, band ->
+                    prepareBand(band * RowTask.BAND, Math.min(height, (band + 1) * RowTask.BAND), accum, counts, lumSquares)));
+            float[] src = ping, dst = pong;
+            for (int level = 0; level < LEVELS; level++) {
+                float[] from = src, to = dst;
+                int step = 1 << level;
+                IntBuffer target = level == LEVELS - 1 ? out : null;
+                pool.invoke(new RowTask(0, height, y -> filterRow(y, step, from, to, target, accum, counts)));
+                src = to; dst = from;
+            }
+        }
+
+        // What prepareBand() needs of the rows just above (slot x) and below (slot width + x) its band: unit normal,
+        // depth and demodulated luminance
+        static final class Halo {
+            final float[] normal, depth, lum;
+            Halo(int width) { normal = new float[2 * width * 3]; depth = new float[2 * width]; lum = new float[2 * width]; }
+        }
+
+        private static float albedoFloor(float a) { return Math.max(a, 0.01f); }
+
+        private static float luminance(float r, float g, float b) { return 0.2126f * r + 0.7152f * g + 0.0722f * b; }
+
+        // Mean albedo and unit normal of pixel p, n samples, into the arrays at slot o; returns the mean hit distance,
+        // or -1 unless every sample hit a diffuse surface
+        private float resolve(int p, int n, float[] albedoOut, float[] normalOut, int o) {
+            float inv = 1f / n;
+            if (albedoOut != null) {
+                albedoOut[o*3] = albedoSum[p*3] * inv; albedoOut[o*3 + 1] = albedoSum[p*3 + 1] * inv; albedoOut[o*3 + 2] = albedoSum[p*3 + 2] * inv;
+            }
+            float nx = normalSum[p*3], ny = normalSum[p*3 + 1], nz = normalSum[p*3 + 2];
+            float nl = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if (nl > 0f) { nx /= nl; ny /= nl; nz /= nl; }
+            normalOut[o*3] = nx; normalOut[o*3 + 1] = ny; normalOut[o*3 + 2] = nz;
+            return hits[p] < n ? -1f : depthSum[p] / hits[p];
+        }
+
+        // Luminance of pixel p's mean colour divided by its mean albedo
+        private float demodulatedLum(int p, int n, float[] accum) {
+            float inv = 1f / n;
+            return luminance(accum[p*3] * inv / albedoFloor(albedoSum[p*3] * inv), accum[p*3 + 1] * inv / albedoFloor(albedoSum[p*3 + 1] * inv),
+                    accum[p*3 + 2] * inv / albedoFloor(albedoSum[p*3 + 2] * inv));
+        }
+
+        // Resolves the features of rows [from, to) and demodulates their colour into ping, then fills in the variance
+        // of single-sample pixels from their 3x3 neighbourhood on the same surface. The rows just outside the band
+        // belong to other tasks, so what the neighbourhood needs of them is resolved again into the halo scratch.
+        private void prepareBand(int from, int to, float[] accum, int[] counts, float[] lumSquares) {
+            for (int y = from; y < to; y++) {
+                for (int x = 0; x < width; x++) {
+                    int p = y * width + x, n = counts[p], ps = p * STRIDE;
+                    shownFiltered[p] = filtered[p];
+                    filtered[p] = false;
+                    float z = resolve(p, n, albedo, normal, p);
+                    depth[p] = z;
+                    if (z < 0f) continue;
+                    float inv = 1f / n;
+                    float ar = albedoFloor(albedo[p*3]), ag = albedoFloor(albedo[p*3 + 1]), ab = albedoFloor(albedo[p*3 + 2]);
+                    float r = accum[p*3] * inv / ar, g = accum[p*3 + 1] * inv / ag, b = accum[p*3 + 2] * inv / ab;
+                    ping[ps] = r; ping[ps + 1] = g; ping[ps + 2] = b; ping[ps + 3] = luminance(r, g, b);
+                    float variance = -1f; // filled in below from the neighbourhood
+                    if (n > 1) {
+                        float mean = luminance(accum[p*3], accum[p*3 + 1], accum[p*3 + 2]) * inv;
+                        float la = luminance(ar, ag, ab);
+                        variance = Math.max(0f, lumSquares[p] * inv - mean * mean) * inv / (la * la);
+                    }
+                    ping[ps + 4] = variance;
+                }
+            }
+            Halo h = halo.get();
+            for (int x = 0; x < width; x++) {
+                if (from > 0) haloPixel((from - 1) * width + x, counts, accum, h, x);
+                if (to < height) haloPixel(to * width + x, counts, accum, h, width + x);
+            }
+            for (int y = from; y < to; y++) {
+                for (int x = 0; x < width; x++) {
+                    int p = y * width + x;
+                    if (depth[p] < 0f || ping[p*STRIDE + 4] >= 0f) continue;
+                    float nx = normal[p*3], ny = normal[p*3 + 1], nz = normal[p*3 + 2];
+                    float sum = 0f, sumSq = 0f;
+                    int count = 0;
+                    for (int qy = Math.max(0, y - 1); qy <= Math.min(height - 1, y + 1); qy++) {
+                        boolean inBand = qy >= from && qy < to;
+                        float[] normals = inBand ? normal : h.normal;
+                        for (int qx = Math.max(0, x - 1); qx <= Math.min(width - 1, x + 1); qx++) {
+                            int q = inBand ? qy * width + qx : (qy < from ? 0 : width) + qx;
+                            if ((inBand ? depth[q] : h.depth[q]) < 0f) continue;
+                            if (nx*normals[q*3] + ny*normals[q*3 + 1] + nz*normals[q*3 + 2] < MIN_NORMAL_COS) continue;
+                            float l = inBand ? ping[q*STRIDE + 3] : h.lum[q];
+                            sum += l; sumSq += l * l; count++;
+                        }
+                    }
+                    float mean = sum / count;
+                    ping[p*STRIDE + 4] = Math.max(0f, sumSq / count - mean * mean);
+                }
+            }
+        }
+
+        private void haloPixel(int p, int[] counts, float[] accum, Halo h, int o) {
+            int n = counts[p];
+            h.depth[o] = resolve(p, n, null, h.normal, o);
+            if (h.depth[o] >= 0f) h.lum[o] = demodulatedLum(p, n, accum);
+        }
+
+        // Stand-in for exp(-x) without a transcendental call or division per tap: (1 - x/4)^2 has a similar shape
+        // near zero and compact support, reaching zero at x = 4
+        private static float edgeStop(float x) { float t = 1f - 0.25f * x; return t > 0f ? t * t : 0f; }
+
+        // One a-trous level: 3x3 B-spline taps spaced step pixels apart, weighted by the edge-stopping functions;
+        // variance is filtered with the squared weights. Pixels with no variance left are copied. With an output
+        // buffer (the last level) the row is written out as soon as it is filtered.
+        private void filterRow(int y, int step, float[] src, float[] dst, IntBuffer out, float[] accum, int[] counts) {
+            for (int x = 0; x < width; x++) {
+                int p = y * width + x, ps = p * STRIDE;
+                float zp = depth[p];
+                if (zp < 0f) continue;
+                float sigma = SIGMA_LUM * (float) Math.sqrt(src[ps + 4]);
+                if (sigma < MIN_SIGMA) { System.arraycopy(src, ps, dst, ps, STRIDE); continue; }
+                filtered[p] = true;
+                float lumScale = 1f / sigma;
+                float depthScale = 1f / (SIGMA_DEPTH * step * zp + 1e-6f);
+                float lp = src[ps + 3];
+                float nx = normal[p*3], ny = normal[p*3 + 1], nz = normal[p*3 + 2];
+                float wSum = 0f, r = 0f, g = 0f, b = 0f, l = 0f, v = 0f;
+                for (int dy = -1; dy <= 1; dy++) {
+                    int qy = y + dy * step;
+                    if (qy < 0 || qy >= height) continue;
+                    float ky = dy == 0 ? 0.5f : 0.25f;
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int qx = x + dx * step;
+                        if (qx < 0 || qx >= width) continue;
+                        int q = qy * width + qx, qs = q * STRIDE;
+                        float zq = depth[q];
+                        if (zq < 0f) continue;
+                        float cos = nx*normal[q*3] + ny*normal[q*3 + 1] + nz*normal[q*3 + 2];
+                        if (cos < MIN_NORMAL_COS) continue;
+                        // (n.n')^p = exp(p ln cos) ~ exp(-p (1 - cos)), so all three terms share one edgeStop
+                        float w = ky * (dx == 0 ? 0.5f : 0.25f)
+                                * edgeStop(NORMAL_POWER * (1f - cos) + Math.abs(zp - zq) * depthScale + Math.abs(lp - src[qs + 3]) * lumScale);
+                        wSum += w;
+                        r += w * src[qs]; g += w * src[qs + 1]; b += w * src[qs + 2]; l += w * src[qs + 3];
+                        v += w * w * src[qs + 4];
+                    }
+                }
+                float inv = 1f / wSum;
+                dst[ps] = r * inv; dst[ps + 1] = g * inv; dst[ps + 2] = b * inv;
+                dst[ps + 3] = l * inv; dst[ps + 4] = v * inv * inv;
+            }
+            if (out != null) writeRow(y, dst, accum, counts, out);
+        }
+
+        private void writeRow(int y, float[] src, float[] accum, int[] counts, IntBuffer out) {
+            for (int x = 0; x < width; x++) {
+                int p = y * width + x;
+                double r, g, b;
+                if (!filtered[p]) {
+                    // storePixel wrote the unfiltered mean, unless an earlier run replaced it and this pass skipped it
+                    if (!shownFiltered[p]) continue;
+                    int n = counts[p];
+                    r = accum[p*3] / n; g = accum[p*3 + 1] / n; b = accum[p*3 + 2] / n;
+                } else {
+                    r = src[p*STRIDE] * albedoFloor(albedo[p*3]);
+                    g = src[p*STRIDE + 1] * albedoFloor(albedo[p*3 + 1]);
+                    b = src[p*STRIDE + 2] * albedoFloor(albedo[p*3 + 2]);
+                }
+                out.put(p, packRgba(r, g, b));
+            }
+        }
+    }
+
+    // Splits a range of image rows in half down to bands of a few rows
+    static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int BAND = 8;
+        final int from, to;
+        final IntConsumer row;
+        RowTask(int from, int to, IntConsumer row) { this.from = from; this.to = to; this.row = row; }
+        @Override protected void compute() {
+            if (to - from > BAND) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RowTask(from, mid, row), new RowTask(mid, to, row));
+                return;
+            }
+            for (int y = from; y < to; y++) row.accept(y);
+        }
+    }
+
+    enum PassKind { FULL, ADAPTIVE, REPROJECTED }
+
+    // Render time per pixel summed since pass 0, for the heatmap. Pixels reused by reprojection cost nothing.
+    static class CostMap {
+        static final int[][] RAMP = { {0, 0, 64}, {0, 96, 255}, {0, 208, 96}, {255, 224, 0}, {255, 32, 0} };
+        static final int BINS_PER_OCTAVE = 4, BINS = 40 * BINS_PER_OCTAVE; // log2 histogram up to 2^40 ns
+        final float[] nanos;
+        final int width, height;
+        CostMap(int width, int height) { this.width = width; this.height = height; nanos = new float[width * height]; }
+
+        void clear() { java.util.Arrays.fill(nanos, 0f); }
+
+        // Writes the map as opaque colours in the order of packRgba(), from dark blue (free) to red (at or above the
+        // 99th percentile, so a few outliers do not wash out the rest), and returns a one-line summary
+        String paint(IntBuffer out) {
+            int[] histogram = new int[BINS];
+            double sum = 0, max = 0;
+            for (float v : nanos) {
+                sum += v;
+                max = Math.max(max, v);
+                histogram[bin(v)]++;
+            }
+            int rank = (int) (0.99 * nanos.length), bin = 0, seen = histogram[0];
+            while (seen <= rank && bin < BINS - 1) seen += histogram[++bin];
+            double p99 = Math.max(1.0, Math.pow(2.0, (bin + 1) / (double) BINS_PER_OCTAVE));
+            for (int p = 0; p < nanos.length; p++) {
+                double t = Math.min(1.0, nanos[p] / p99) * (RAMP.length - 1);
+                int i = Math.min(RAMP.length - 2, (int) t);
+                double f = t - i;
+                int[] a = RAMP[i], b = RAMP[i + 1];
+                int r = (int) (a[0] + (b[0] - a[0]) * f), g = (int) (a[1] + (b[1] - a[1]) * f), bl = (int) (a[2] + (b[2] - a[2]) * f);
+                out.put(p, 0xFF000000 | bl << 16 | g << 8 | r);
+            }
+            return String.format("Cost heatmap %dx%d: mean %.1f us, 99th percentile %.1f us, max %.1f us per pixel",
+                    width, height, sum / nanos.length / 1e3, p99 / 1e3, max / 1e3);
+        }
+
+        private static int bin(float v) {
+            if (v < 1f) return 0;
+            return Math.min(BINS - 1, (int) (Math.log(v) / Math.log(2) * BINS_PER_OCTAVE));
+        }
+    }
+
+    // Counters summed over all render threads since start: rays by type, traversal work, time per stage, and bytes
+    // allocated by the workers inside tiles (the trace path, not per-pass setup). Tiles flush their TraceContext
+    // counts when they finish; stages add their own times.
+    static class RenderStats {
+        static final int PRIMARY = 0, SECONDARY = 1, SHADOW = 2, NODES = 3, TESTS = 4, PASSES = 5, PASS_NANOS = 6,
+                REPROJECT_NANOS = 7, PLAN_NANOS = 8, DENOISE_NANOS = 9, UPLOAD_NANOS = 10, ALLOCATED = 11, BVH_NANOS = 12,
+                BVH_BUILDS = 13, COUNT = 14;
+        private final LongAdder[] counters = new LongAdder[COUNT];
+        RenderStats() { for (int i = 0; i < COUNT; i++) counters[i] = new LongAdder(); }
+
+        void add(int counter, long value) { counters[counter].add(value); }
+
+        void addTile(TraceContext ctx) {
+            counters[PRIMARY].add(ctx.primaryRays); counters[SECONDARY].add(ctx.secondaryRays); counters[SHADOW].add(ctx.shadowRays);
+            counters[NODES].add(ctx.nodeVisits); counters[TESTS].add(ctx.shapeTests); counters[ALLOCATED].add(ctx.allocated);
+            ctx.primaryRays = 0; ctx.secondaryRays = 0; ctx.shadowRays = 0; ctx.nodeVisits = 0; ctx.shapeTests = 0; ctx.allocated = 0;
+        }
+
+        long[] totals() {
+            long[] t = new long[COUNT];
+            for (int i = 0; i < COUNT; i++) t[i] = counters[i].sum();
+            return t;
+        }
+
+        static long rays(long[] t) { return t[PRIMARY] + t[SECONDARY] + t[SHADOW]; }
+
+        // One line for the work between two totals() over the given wall-clock seconds
+        static String describe(long[] from, long[] to, double seconds) {
+            long[] d = new long[COUNT];
+            for (int i = 0; i < COUNT; i++) d[i] = to[i] - from[i];
+            long rays = rays(d), passes = Math.max(1, d[PASSES]);
+            double perRay = Math.max(1, rays);
+            return String.format("Stats: %.2f Mrays/s (primary %d, secondary %d, shadow %d), %.1f nodes and %.1f shape tests per ray; "
+                            + "per pass over %d passes: render %.1f ms (reproject %.1f, adaptive plan %.1f), alloc %.1f KB; "
+                            + "in total: denoise %.1f ms, upload %.1f ms, BVH update %.1f ms (%d builds)",
+                    rays / seconds / 1e6, d[PRIMARY], d[SECONDARY], d[SHADOW], d[NODES] / perRay, d[TESTS] / perRay,
+                    d[PASSES], d[PASS_NANOS] / 1e6 / passes, d[REPROJECT_NANOS] / 1e6 / passes, d[PLAN_NANOS] / 1e6 / passes,
+                    d[ALLOCATED] / 1024.0 / passes, d[DENOISE_NANOS] / 1e6, d[UPLOAD_NANOS] / 1e6, d[BVH_NANOS] / 1e6, d[BVH_BUILDS]);
+        }
+    }
+
+    // Flight Recorder events, for recordings started with -XX:StartFlightRecording or jcmd JFR.start
+    @jdk.jfr.Name("lab8.RenderPass") @jdk.jfr.Label("Render Pass") @jdk.jfr.Category("Lab8")
+    static class RenderPassEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Pass") int pass;
+        @jdk.jfr.Label("Kind") String kind;
+        @jdk.jfr.Label("Width") int width;
+        @jdk.jfr.Label("Height") int height;
+        @jdk.jfr.Label("Primary Rays") long primaryRays;
+        @jdk.jfr.Label("Secondary Rays") long secondaryRays;
+        @jdk.jfr.Label("Shadow Rays") long shadowRays;
+        @jdk.jfr.Label("BVH Node Visits") long nodeVisits;
+        @jdk.jfr.Label("Shape Tests") long shapeTests;
+        @jdk.jfr.Label("Allocated") @jdk.jfr.DataAmount long allocated;
+        @jdk.jfr.Label("Cancelled") boolean cancelled;
+    }
+
+    @jdk.jfr.Name("lab8.Denoise") @jdk.jfr.Label("Denoise") @jdk.jfr.Category("Lab8")
+    static class DenoiseEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Pass") int pass;
+        @jdk.jfr.Label("Width") int width;
+        @jdk.jfr.Label("Height") int height;
+    }
+
+    @jdk.jfr.Name("lab8.Upload") @jdk.jfr.Label("Texture Upload") @jdk.jfr.Category("Lab8")
+    static class UploadEvent extends jdk.jfr.Event {
+        @jdk.jfr.Label("Width") int width;
+        @jdk.jfr.Label("Height") int height;
+        @jdk.jfr.Label("Through PBO") boolean pbo;
+    }
+
+    // RGBA8 image the renderer writes, with the size it was allocated for; only absolute puts touch it
+    static class FrameImage {
+        final ByteBuffer pixels; final int width, height;
+        final LongAdder writes = new LongAdder(); // bumped by the render side after each finished tile or full-image pass
+        FrameImage(ByteBuffer pixels, int width, int height) { this.pixels = pixels; this.width = width; this.height = height; }
+    }
+
+    // Picks the preview quality from measured frame times: one level down as soon as a frame overshoots the budget
+    // (two when it takes twice as long), one level up after UPGRADE_FRAMES frames in a row with enough headroom
+    // to afford the next level. Levels are ordered by cost, each roughly 1.5x the one below.
+    static class QualityGovernor {
+        // scale relative to renderScale, max depth, shadow samples, glossy samples
+        static final double[][] LEVELS = {
+            {0.35, 2, 1, 1}, {0.45, 2, 2, 1}, {0.5, 3, 2, 1}, {0.6, 3, 4, 2}, {0.75, 3, 4, 2}, {0.85, 4, 6, 3}, {1.0, 5, 8, 4}
+        };
+        static final double HEADROOM = 0.6;  // frame time below this share of the budget counts towards a level up
+        static final int UPGRADE_FRAMES = 3;
+        int targetFps = 30;
+        int level = 3;                        // the former fixed preview: 0.6 scale, depth 3, 4 shadow, 2 glossy
+        private int fastFrames = 0;
+
+        double budgetMs() { return 1000.0 / targetFps; }
+        double scale() { return LEVELS[level][0]; }
+        int maxDepth() { return (int) LEVELS[level][1]; }
+        int shadowSamples() { return (int) LEVELS[level][2]; }
+        int glossySamples() { return (int) LEVELS[level][3]; }
+
+        // Returns true when the level changed
+        boolean observe(double ms) {
+            double budget = budgetMs();
+            int next = level;
+            if (ms > budget) {
+                fastFrames = 0;
+                next = Math.max(0, level - (ms > 2 * budget ? 2 : 1));
+            } else if (ms < HEADROOM * budget) {
+                if (++fastFrames >= UPGRADE_FRAMES) {
+                    fastFrames = 0;
+                    next = Math.min(LEVELS.length - 1, level + 1);
+                }
+            } else {
+                fastFrames = 0; // in budget but not fast: the fast frames must be consecutive
+            }
+            if (next == level) return false;
+            level = next;
+            return true;
+        }
+    }
+
+    // Everything a render job reads from the interactive state, copied on the GL thread when the job is submitted
+    static class RenderSnapshot {
+        final int width, height;
+        final Vec3 eye, lookAt, up; final float fov;
+        final java.util.List<Light> lights = new java.util.ArrayList<>();
+        final boolean preview, pathTracing, softShadows, misSampling, penumbraProbes, denoise, progressive, adaptive, heatmap;
+        final int maxDepth, previewMaxDepth, pathMaxBounces, shadowSamples, previewShadowSamples, glossySamples, previewGlossySamples;
+        final long renderSeed; final SamplerKind samplerKind;
+        final double adaptiveBudget, adaptiveThreshold;
+        final double animationTime; final boolean refitBvh;
+        final boolean restart, reproject;
+        final double budgetMs; // preview frame time the governor aims for
+        RenderSnapshot(Lab8 view, boolean restart, boolean reproject) {
+            width = view.imgWidth; height = view.imgHeight;
+            Camera c = view.camera;
+            eye = new Vec3(c.eye.x, c.eye.y, c.eye.z); lookAt = new Vec3(c.lookAt.x, c.lookAt.y, c.lookAt.z); up = new Vec3(c.up.x, c.up.y, c.up.z); fov = c.fov;
+            for (Light l : view.scene.lights) lights.add(l.copy());
+            preview = view.preview; pathTracing = view.pathTracing; softShadows = view.softShadows; misSampling = view.misSampling;
+            penumbraProbes = view.penumbraProbes; denoise = view.denoise; progressive = view.progressive; adaptive = view.adaptive;
+            heatmap = view.heatmap;
+            maxDepth = view.maxDepth; previewMaxDepth = view.previewMaxDepth; pathMaxBounces = view.pathMaxBounces; shadowSamples = view.shadowSamples;
+            previewShadowSamples = view.previewShadowSamples; glossySamples = view.glossySamples;
+            previewGlossySamples = view.previewGlossySamples;
+            renderSeed = view.renderSeed; samplerKind = view.samplerKind;
+            adaptiveBudget = view.adaptiveBudget; adaptiveThreshold = view.adaptiveThreshold;
+            animationTime = view.animationTime; refitBvh = view.refitBvh;
+            this.restart = restart; this.reproject = reproject;
+            budgetMs = view.governor.budgetMs();
+        }
+        // Runs on the render thread, between jobs
+        void applyTo(Lab8 r) {
+            FrameImage shown = r.shownFrame;
+            if (shown == null || shown.width != width || shown.height != height) {
+                FrameImage spare = r.spareFrame;
+                if (spare == null || spare.width != width || spare.height != height) {
+                    spare = new FrameImage(BufferUtils.createByteBuffer(width * height * 4), width, height);
+                }
+                r.spareFrame = shown;
+                r.imgWidth = width; r.imgHeight = height;
+                r.attachPixels(spare.pixels);
+                r.shownFrame = spare;
+            }
+            Camera c = r.camera;
+            c.eye.set(eye); c.lookAt.set(lookAt); c.up.set(up); c.fov = fov;
+            r.scene.lights = lights;
+            r.preview = preview; r.pathTracing = pathTracing; r.softShadows = softShadows; r.misSampling = misSampling;
+            r.penumbraProbes = penumbraProbes; r.denoise = denoise; r.progressive = progressive; r.adaptive = adaptive;
+            r.heatmap = heatmap;
+            r.maxDepth = maxDepth; r.previewMaxDepth = previewMaxDepth; r.pathMaxBounces = pathMaxBounces; r.shadowSamples = shadowSamples;
+            r.previewShadowSamples = previewShadowSamples; r.glossySamples = glossySamples;
+            r.previewGlossySamples = previewGlossySamples;
+            r.renderSeed = renderSeed; r.samplerKind = samplerKind;
+            r.adaptiveBudget = adaptiveBudget; r.adaptiveThreshold = adaptiveThreshold;
+            r.scene.refit = refitBvh;
+            if (animationTime != r.animationTime) {
+                // Shapes are shared, so they only move here, while no tile is tracing
+                long t0 = System.nanoTime();
+                boolean built = r.scene.animate(animationTime);
+                r.animationTime = animationTime;
+                r.stats.add(RenderStats.BVH_NANOS, System.nanoTime() - t0);
+                if (built) r.stats.add(RenderStats.BVH_BUILDS, 1);
+            }
+            if (restart) { r.accumPasses = 0; r.reprojectNext = reproject; }
+        }
+    }
+
+    // One pass, or with progressive refinement passes until convergence, of the renderer for a snapshot. A newer
+    // job sets cancelled; tiles that have not started yet are then skipped.
+    class RenderJob implements Runnable {
+        final RenderSnapshot snapshot;
+        final boolean refines; // keeps adding passes after the first
+        volatile boolean cancelled;
+        volatile long startNanos, firstPassNanos; // 0 until the job starts and until its first pass is shown
+        boolean observed;                         // GL thread: frame time already given to the governor
+        Future<?> future;
+        RenderJob(RenderSnapshot snapshot) { this.snapshot = snapshot; refines = snapshot.progressive && !snapshot.preview; }
+        @Override public void run() {
+            if (cancelled) return;
+            startNanos = System.nanoTime();
+            Lab8 r = renderer;
+            snapshot.applyTo(r);
+            r.activeJob = this;
+            do {
+                r.renderImage(renderPool);
+                if (cancelled) return;
+                // The governor times a preview frame up to firstPassNanos, denoise included, so a preview frame is
+                // only denoised while the last measured cost still fits what is left of the budget. Refining passes
+                // always denoise; each skipped frame lowers the estimate a little so a long drag tries again.
+                long spent = System.nanoTime() - startNanos;
+                if (!snapshot.preview || spent + r.denoiseNanosPerPixel * r.imgWidth * r.imgHeight <= snapshot.budgetMs * 1e6) {
+                    r.denoiseImage(renderPool);
+                } else {
+                    r.denoiseNanosPerPixel *= 0.9;
+                }
+                if (r.heatmap) r.costMap.paint(r.pixelInts);
+                r.framePainted();
+                if (firstPassNanos == 0) firstPassNanos = System.nanoTime();
+            } while (refines && !cancelled && r.accumPasses < MAX_ACCUM_PASSES && !r.refinementDone);
+        }
+    }
+
+    // Previous-frame buffers for reprojectHistory()
+    static class Reprojection {
+        final float[] color, depth, albedo, normal; // linear mean, mean hit distance (< 0: not reusable), features
+        final AtomicLongArray nearest;              // per new pixel: warped distance bits << 32 | old pixel, NONE for none
+        final boolean[] fresh;                      // new pixel needs a traced sample
+        Camera camera;                              // camera of the last pass 0, null before the first
+        long frame;                                 // rotates the refreshed subset
+        static final long NONE = Long.MAX_VALUE;
+        Reprojection(int width, int height) {
+            int pixels = width * height;
+            color = new float[pixels * 3]; depth = new float[pixels]; albedo = new float[pixels * 3]; normal = new float[pixels * 3];
+            nearest = new AtomicLongArray(pixels); fresh = new boolean[pixels];
+        }
+    }
+
+    static class TraceFrame {
+        final Hit hit = new Hit();
+        final Ray child = new Ray();
+        final Vec3 lightPos = new Vec3(0,0,0);
+        final Vec3 view = new Vec3(0,0,0);
+        final Vec3 facing = new Vec3(0,0,0);
+        final Vec3 dir = new Vec3(0,0,0);
+        final Vec3 childColor = new Vec3(0,0,0);
+        final Vec3 lightSum = new Vec3(0,0,0);
+    }
+
+    // Writes the radiance arriving along ray into out. Temporaries come from ctx, so the path does not allocate.
+    // index is the ray's sample number within the pixel; nested estimators derive their own sample numbers from it.
+    // Radiance along a primary ray with the selected integrator
+    private void radiance(Ray ray, long index, TraceContext ctx, Vec3 out) {
+        if (!pathTracing) { trace(ray, 0, index, ctx, out); return; }
+        ctx.primaryRays++;
+        Hit hit = ctx.frame(0).hit;
+        if (!scene.intersect(ray, hit, ctx)) { scene.background(ray, out); return; }
+        shadePath(ray, hit, index, ctx, out);
+    }
+
+    private void trace(Ray ray, int depth, long index, TraceContext ctx, Vec3 out) {
+        if (depth > (preview ? previewMaxDepth : maxDepth)) { out.set(0,0,0); return; }
+        if (depth == 0) ctx.primaryRays++; else ctx.secondaryRays++;
+        Hit hit = ctx.frame(depth).hit;
+        if (!scene.intersect(ray, hit, ctx)) { scene.background(ray, out); return; }
+        shade(ray, hit, depth, index, ctx, out);
+    }
+
+    // Direct lighting plus reflected and refracted rays at a known hit of ray
+    private void shade(Ray ray, Hit hit, int depth, long index, TraceContext ctx, Vec3 out) {
+        TraceFrame f = ctx.frame(depth);
+        Sampler sampler = ctx.sampler;
+        int dim = sampleDimension(depth);
+        Vec3 p = hit.position;
+        Vec3 n = hit.normal;
+        Vec3 d = ray.direction;
+        Material m = hit.material;
+        Vec3 base = m.albedoAt(p);
+        double cx = base.x * 0.05, cy = base.y * 0.05, cz = base.z * 0.05;
+
+        for (int li = 0; li < scene.lights.size(); li++) {
+            Light light = scene.lights.get(li);
+            int samples = (softShadows && light.radius > 0.0) ? (preview ? previewShadowSamples : shadowSamples) : 1;
+            Vec3 lp = f.lightPos;
+            Vec3 sum = f.lightSum.set(0, 0, 0);
+            // Probe the centre and rim first: if they all agree the point is fully lit or in umbra and the
+            // samples below need no shadow rays (or are skipped); only disagreement pays for the full count
+            boolean test = true;
+            if (penumbraProbes && samples > Light.PROBES) {
+                int visible = 0;
+                for (int i=0;i<Light.PROBES;i++) {
+                    light.probePosition(i, lp);
+                    if (lightVisible(p, n, lp, ctx)) visible++;
+                }
+                if (visible == 0) continue;
+                test = visible < Light.PROBES;
+            }
+            // With MIS half of the samples come from the BRDF instead of the disk; both strategies share the
+            // sample dimensions, taking consecutive indices
+            boolean mis = misSampling && samples > 1 && brdfSamplingPays(light, p, m, base);
+            int lightCount = mis ? (samples + 1) / 2 : samples, brdfCount = samples - lightCount;
+            for (int i=0;i<lightCount;i++) {
+                long si = index * samples + i;
+                light.samplePosition(sampler.get(dim + 2*li, si), sampler.get(dim + 2*li + 1, si), lp);
+                if (!test || lightVisible(p, n, lp, ctx)) {
+                    double w = mis ? misWeight(light, lp, p, n, d, m, base, lightCount, brdfCount) : 1.0;
+                    addLightSample(light, lp, p, n, d, m, base, w, sum);
+                }
+            }
+            for (int i=0;i<brdfCount;i++) {
+                long si = index * samples + lightCount + i;
+                Vec3 dir = sampleBrdf(n, d, m, base, sampler.get(dim + 2*li, si), sampler.get(dim + 2*li + 1, si), f.dir);
+                if (!light.intersectDisk(p, dir, lp)) continue;
+                if (!test || lightVisible(p, n, lp, ctx)) addLightSample(light, lp, p, n, d, m, base, misWeight(light, lp, p, n, d, m, base, lightCount, brdfCount), sum);
+            }
+            if (mis) { cx = cx + sum.x; cy = cy + sum.y; cz = cz + sum.z; }
+            else { cx = cx + sum.x / samples; cy = cy + sum.y / samples; cz = cz + sum.z / samples; }
+        }
+
+        Vec3 V = f.view.set(-d.x, -d.y, -d.z);
+        double kr = fresnel(V, n, m.ior);
+        double rx = 0, ry = 0, rz = 0;
+        if (m.reflectivity > 0.0 || kr > 0.0) {
+            int glossyCount = m.glossyRoughness > 0.0 ? (preview ? previewGlossySamples : glossySamples) : 1;
+            int gd = dim + 2*scene.lights.size();
+            for (int i=0;i<glossyCount;i++) {
+                long si = index * glossyCount + i;
+                Vec3 R = reflect(d, n, f.dir);
+                if (m.glossyRoughness > 0.0) sampleGlossyLobe(R, m.glossyRoughness, sampler.get(gd, si), sampler.get(gd + 1, si), R);
+                trace(f.child.set(p.x + n.x*1e-4, p.y + n.y*1e-4, p.z + n.z*1e-4, R.x, R.y, R.z), depth+1, si, ctx, f.childColor);
+                rx = rx + f.childColor.x; ry = ry + f.childColor.y; rz = rz + f.childColor.z;
+            }
+            rx = rx / glossyCount; ry = ry / glossyCount; rz = rz / glossyCount;
+        }
+        double tx = 0, ty = 0, tz = 0;
+        if (m.refractivity > 0.0) {
+            boolean into = n.dot(V) > 0;
+            double n1 = into ? 1.0 : m.ior;
+            double n2 = into ? m.ior : 1.0;
+            Vec3 nn = into ? f.facing.set(n) : f.facing.set(-n.x, -n.y, -n.z);
+            Vec3 T = refract(d, nn, n1, n2, f.dir);
+            if (T != null) {
+                trace(f.child.set(p.x + T.x*1e-4, p.y + T.y*1e-4, p.z + T.z*1e-4, T.x, T.y, T.z), depth+1, index, ctx, f.childColor);
+                tx = f.childColor.x; ty = f.childColor.y; tz = f.childColor.z;
+            } else {
+                kr = 1.0;
+            }
+        }
+        double reflectW = m.reflectivity * (m.refractivity > 0.0 ? kr : 1.0);
+        double refractW = m.refractivity * (1.0 - kr);
+        cx = cx + rx * reflectW; cy = cy + ry * reflectW; cz = cz + rz * reflectW;
+        cx = cx + tx * refractW; cy = cy + ty * refractW; cz = cz + tz * refractW;
+        out.set(cx, cy, cz);
+    }
+
+    private boolean lightVisible(Vec3 p, Vec3 n, Vec3 lp, TraceContext ctx) {
+        double lx = lp.x - p.x, ly = lp.y - p.y, lz = lp.z - p.z;
+        double dist = Math.sqrt(lx*lx + ly*ly + lz*lz);
+        ctx.shadow.set(p.x + n.x*1e-4, p.y + n.y*1e-4, p.z + n.z*1e-4, lx / dist, ly / dist, lz / dist);
+        return !scene.occluded(ctx.shadow, dist - 2e-4, ctx);
+    }
+
+    // Adds the diffuse and Blinn-Phong terms for light position lp, times weight and without a shadow test, to sum
+    private static void addLightSample(Light light, Vec3 lp, Vec3 p, Vec3 n, Vec3 d, Material m, Vec3 base, double weight, Vec3 sum) {
+        double lx = lp.x - p.x, ly = lp.y - p.y, lz = lp.z - p.z;
+        double dist = Math.sqrt(lx*lx + ly*ly + lz*lz);
+        lx = lx / dist; ly = ly / dist; lz = lz / dist;
+        double atten = 1.0 / (light.constant + light.linear * dist + light.quadratic * dist * dist);
+        double ndotl = Math.max(0.0, n.x*lx + n.y*ly + n.z*lz);
+        double kd = m.kd * ndotl;
+        double hx = -d.x + lx, hy = -d.y + ly, hz = -d.z + lz;
+        double hl = Math.sqrt(hx*hx + hy*hy + hz*hz);
+        if (hl == 0) { hx = 0; hy = 0; hz = 0; } else { hx = hx / hl; hy = hy / hl; hz = hz / hl; }
+        double spec = Math.pow(Math.max(0.0, n.x*hx + n.y*hy + n.z*hz), m.shininess) * m.ks;
+        sum.x = sum.x + ((base.x * kd + spec) * light.color.x) * atten * weight;
+        sum.y = sum.y + ((base.y * kd + spec) * light.color.y) * atten * weight;
+        sum.z = sum.z + ((base.z * kd + spec) * light.color.z) * atten * weight;
+    }
+
+    // BRDF samples only beat disk samples where a mostly specular lobe is narrower than the light seen from p;
+    // elsewhere most of them would miss the disk and MIS just halves the useful sample count
+    private static boolean brdfSamplingPays(Light light, Vec3 p, Material m, Vec3 base) {
+        if (specularChance(m, base) < 0.5) return false;
+        double lx = light.position.x - p.x, ly = light.position.y - p.y, lz = light.position.z - p.z;
+        double dist2 = lx*lx + ly*ly + lz*lz;
+        double lightSolidAngle = Math.PI * light.radius * light.radius * Math.abs(ly) / (Math.sqrt(dist2) * dist2);
+        double lobeSolidAngle = 8.0 * Math.PI / (m.shininess + 1.0);
+        return lobeSolidAngle < lightSolidAngle;
+    }
+
+    // Balance-heuristic MIS between lightCount disk samples (pdf 1/area) and brdfCount BRDF samples, for the light
+    // integral averaged over the disk. Both strategies give a sample at lp the same weight, 1 / sum of count * pdf,
+    // with the BRDF pdf converted to area measure and everything scaled by the disk area.
+    private static double misWeight(Light light, Vec3 lp, Vec3 p, Vec3 n, Vec3 d, Material m, Vec3 base, int lightCount, int brdfCount) {
+        double lx = lp.x - p.x, ly = lp.y - p.y, lz = lp.z - p.z;
+        double dist2 = lx*lx + ly*ly + lz*lz;
+        double dist = Math.sqrt(dist2);
+        lx = lx / dist; ly = ly / dist; lz = lz / dist;
+        double area = Math.PI * light.radius * light.radius;
+        double pdfArea = brdfPdf(n, d, m, base, lx, ly, lz) * Math.abs(ly) / dist2;
+        return 1.0 / (lightCount + brdfCount * area * pdfArea);
+    }
+
+    // Unidirectional path tracer starting at a known hit of ray. Every vertex takes one shadow sample per light, then
+    // the path continues along one lobe (reflection, refraction or diffuse) picked in proportion to its weight, so a
+    // sample costs a handful of rays instead of branching at every glossy bounce. Diffuse bounces bring in the
+    // indirect light that the Whitted tracer fakes with its ambient term. Russian roulette ends paths after
+    // RR_START_BOUNCE bounces; pathMaxBounces caps them, and previewMaxDepth in preview.
+    private void shadePath(Ray ray, Hit first, long index, TraceContext ctx, Vec3 out) {
+        TraceFrame f = ctx.frame(0);
+        Sampler sampler = ctx.sampler;
+        int lights = scene.lights.size();
+        int maxBounces = preview ? previewMaxDepth : pathMaxBounces;
+        double lr = 0, lg = 0, lb = 0;  // radiance gathered so far
+        double tr = 1, tg = 1, tb = 1;  // path throughput
+        Ray cur = ray;
+        Hit hit = first;
+        for (int bounce = 0; ; bounce++) {
+            int dim = pathDimension(bounce);
+            Vec3 p = hit.position;
+            Vec3 n = hit.normal;
+            Vec3 d = cur.direction;
+            Material m = hit.material;
+            Vec3 base = m.albedoAt(p);
+
+            Vec3 lp = f.lightPos;
+            Vec3 sum = f.lightSum.set(0, 0, 0);
+            for (int li = 0; li < lights; li++) {
+                Light light = scene.lights.get(li);
+                light.samplePosition(sampler.get(dim + 2*li, index), sampler.get(dim + 2*li + 1, index), lp);
+                if (lightVisible(p, n, lp, ctx)) addLightSample(light, lp, p, n, d, m, base, 1.0, sum);
+            }
+            lr = lr + tr * sum.x; lg = lg + tg * sum.y; lb = lb + tb * sum.z;
+
+            Vec3 V = f.view.set(-d.x, -d.y, -d.z);
+            boolean into = n.dot(V) > 0;
+            double kr = fresnel(V, n, m.ior);
+            Vec3 T = null;
+            if (m.refractivity > 0.0) {
+                T = refract(d, into ? f.facing.set(n) : f.facing.set(-n.x, -n.y, -n.z), into ? 1.0 : m.ior, into ? m.ior : 1.0, f.dir);
+                if (T == null) kr = 1.0;
+            }
+            double reflectW = m.reflectivity * (m.refractivity > 0.0 ? kr : 1.0);
+            double refractW = T == null ? 0.0 : m.refractivity * (1.0 - kr);
+            double diffuseW = m.kd * Math.max(0.0, 1.0 - m.reflectivity - m.refractivity);
+            double diffuseP = diffuseW * luminance(base.x, base.y, base.z);
+            double total = reflectW + refractW + diffuseP;
+            if (total <= 0.0 || bounce + 1 >= maxBounces) break;
+
+            // Pick a lobe with probability weight / total; dividing by that probability leaves total as the factor
+            double u = sampler.get(dim + 2*lights, index) * total;
+            double xi1 = sampler.get(dim + 2*lights + 1, index), xi2 = sampler.get(dim + 2*lights + 2, index);
+            double ox, oy, oz;
+            if (u < reflectW) {
+                Vec3 R = reflect(d, n, f.dir);
+                if (m.glossyRoughness > 0.0) sampleGlossyLobe(R, m.glossyRoughness, xi1, xi2, R);
+                ox = n.x*1e-4; oy = n.y*1e-4; oz = n.z*1e-4;
+                tr = tr * total; tg = tg * total; tb = tb * total;
+            } else if (u < reflectW + refractW) {
+                ox = T.x*1e-4; oy = T.y*1e-4; oz = T.z*1e-4;
+                tr = tr * total; tg = tg * total; tb = tb * total;
+            } else {
+                Vec3 nf = into ? f.facing.set(n) : f.facing.set(-n.x, -n.y, -n.z);
+                sampleCosineHemisphere(nf, xi1, xi2, f.dir);
+                ox = nf.x*1e-4; oy = nf.y*1e-4; oz = nf.z*1e-4;
+                double k = diffuseW * total / diffuseP;
+                tr = tr * base.x * k; tg = tg * base.y * k; tb = tb * base.z * k;
+            }
+            if (bounce + 1 >= RR_START_BOUNCE) {
+                double q = clamp(Math.max(tr, Math.max(tg, tb)), 0.05, 0.95);
+                if (sampler.get(dim + 2*lights + 3, index) >= q) break;
+                tr = tr / q; tg = tg / q; tb = tb / q;
+            }
+            Vec3 dir = f.dir;
+            cur = f.child.set(p.x + ox, p.y + oy, p.z + oz, dir.x, dir.y, dir.z);
+            hit = ctx.frame(1).hit;
+            ctx.secondaryRays++;
+            if (!scene.intersect(cur, hit, ctx)) {
+                Vec3 bg = f.childColor;
+                scene.background(cur, bg);
+                lr = lr + tr * bg.x; lg = lg + tg * bg.y; lb = lb + tb * bg.z;
+                break;
+            }
+        }
+        out.set(lr, lg, lb);
+    }
+
+    // Path tracer dimensions per bounce: two per light, one to pick the lobe, two for its direction, one for roulette
+    private int pathDimension(int bounce) {
+        return 2 + bounce * (2 * scene.lights.size() + 4);
+    }
+
+    // First sampler dimension used at a bounce: dimensions 0-1 jitter the pixel, then every bounce takes
+    // two per light (shadow samples) and two for the glossy lobe
+    private int sampleDimension(int depth) {
+        return 2 + depth * (2 * scene.lights.size() + 2);
+    }
+
+    // Compute look direction from yaw/pitch and update camera.lookAt
+    private void updateCameraLook() {
+        double cy = Math.cos(Math.toRadians(yaw));
+        double sy = Math.sin(Math.toRadians(yaw));
+        double cp = Math.cos(Math.toRadians(pitch));
+        double sp = Math.sin(Math.toRadians(pitch));
+        Vec3 dir = new Vec3(sy * cp, sp, -cy * cp); // Y-up
+        camera.lookAt = camera.eye.add(dir);
+    }
+
+    // Move using WASD + QE; returns true if moved/rotated
+    private boolean handleMovement() {
+        boolean changed = false;
+        double step = 0.15;
+        // Direction vectors from yaw (ignore pitch for horizontal move)
+        double cy = Math.cos(Math.toRadians(yaw));
+        double sy = Math.sin(Math.toRadians(yaw));
+        Vec3 forward = new Vec3(sy, 0, -cy); // -Z forward when yaw=0 -> forward along -Z
+        Vec3 right = new Vec3(cy, 0, sy);
+        if (keyW || keyUpArr) { camera.eye = camera.eye.add(forward.mul(step)); changed = true; }
+        if (keyS || keyDownArr) { camera.eye = camera.eye.sub(forward.mul(step)); changed = true; }
+        if (keyA) { camera.eye = camera.eye.sub(right.mul(step)); changed = true; }
+        if (keyD) { camera.eye = camera.eye.add(right.mul(step)); changed = true; }
+        if (keyQ) { camera.eye = camera.eye.add(new Vec3(0, step, 0)); changed = true; }
+        if (keyE) { camera.eye = camera.eye.add(new Vec3(0, -step, 0)); changed = true; }
+        double turnSpeed = 2.5;
+        if (keyLeftArr) { yaw -= turnSpeed; changed = true; }
+        if (keyRightArr) { yaw += turnSpeed; changed = true; }
+        if (changed || rightMouseHeld) {
+            updateCameraLook();
+        }
+        return changed;
+    }
+
+    // Writes the direction at angle acos(cosTheta) from axis and azimuth phi into out (out may alias axis)
+    private static Vec3 aroundAxis(Vec3 axis, double cosTheta, double phi, Vec3 out) {
+        double l = axis.length();
+        double wx = l == 0 ? 0 : axis.x / l, wy = l == 0 ? 0 : axis.y / l, wz = l == 0 ? 0 : axis.z / l;
+        double ax = Math.abs(wx) > 0.1 ? 0 : 1, ay = Math.abs(wx) > 0.1 ? 1 : 0, az = 0;
+        double ux = ay*wz - az*wy, uy = az*wx - ax*wz, uz = ax*wy - ay*wx;
+        double ul = Math.sqrt(ux*ux + uy*uy + uz*uz);
+        if (ul == 0) { ux = 0; uy = 0; uz = 0; } else { ux = ux / ul; uy = uy / ul; uz = uz / ul; }
+        double vx = wy*uz - wz*uy, vy = wz*ux - wx*uz, vz = wx*uy - wy*ux;
+        double sinTheta = Math.sqrt(Math.max(0.0, 1.0 - cosTheta * cosTheta));
+        double lx = Math.cos(phi) * sinTheta, ly = Math.sin(phi) * sinTheta, lz = cosTheta;
+        return out.set(ux*lx + vx*ly + wx*lz, uy*lx + vy*ly + wy*lz, uz*lx + vz*ly + wz*lz).normalizeLocal();
+    }
+
+    // Phong exponent whose lobe has roughly the width of the old glossy cone (half angle roughness / 2)
+    private static double glossyExponent(double roughness) {
+        double a = Math.max(1e-3, roughness * 0.5);
+        return Math.max(1.0, 2.0 / (a * a) - 2.0);
+    }
+
+    // Importance-samples the normalized Phong lobe cos^e around mirror direction R (out may alias R). The pdf is the
+    // lobe itself, so every sample carries weight one and averaging the child rays estimates the glossy reflection.
+    private static Vec3 sampleGlossyLobe(Vec3 R, double roughness, double xi1, double xi2, Vec3 out) {
+        double cosTheta = Math.pow(xi1, 1.0 / (glossyExponent(roughness) + 1.0));
+        return aroundAxis(R, cosTheta, 2.0 * Math.PI * xi2, out);
+    }
+
+    // Cosine-weighted direction in the hemisphere around unit normal n
+    private static Vec3 sampleCosineHemisphere(Vec3 n, double xi1, double xi2, Vec3 out) {
+        return aroundAxis(n, Math.sqrt(Math.max(0.0, 1.0 - xi1)), 2.0 * Math.PI * xi2, out);
+    }
+
+    // Samples the direct-light BRDF of addLightSample: the Blinn-Phong lobe with probability specularChance, otherwise
+    // the cosine-weighted diffuse lobe. u1 picks the lobe and is then rescaled to [0,1) for reuse.
+    private static Vec3 sampleBrdf(Vec3 n, Vec3 d, Material m, Vec3 base, double u1, double u2, Vec3 out) {
+        double ps = specularChance(m, base);
+        if (u1 >= ps) return sampleCosineHemisphere(n, (u1 - ps) / (1.0 - ps), u2, out);
+        Vec3 h = aroundAxis(n, Math.pow(u1 / ps, 1.0 / (m.shininess + 1.0)), 2.0 * Math.PI * u2, out);
+        double vh = -(d.x*h.x + d.y*h.y + d.z*h.z);
+        return out.set(2.0*vh*h.x + d.x, 2.0*vh*h.y + d.y, 2.0*vh*h.z + d.z).normalizeLocal();
+    }
+
+    // Solid-angle pdf of sampleBrdf for unit direction (wx, wy, wz)
+    private static double brdfPdf(Vec3 n, Vec3 d, Material m, Vec3 base, double wx, double wy, double wz) {
+        double ps = specularChance(m, base);
+        double pdf = (1.0 - ps) * Math.max(0.0, n.x*wx + n.y*wy + n.z*wz) / Math.PI;
+        double hx = wx - d.x, hy = wy - d.y, hz = wz - d.z;
+        double hl = Math.sqrt(hx*hx + hy*hy + hz*hz);
+        if (ps > 0.0 && hl > 0.0) {
+            hx = hx / hl; hy = hy / hl; hz = hz / hl;
+            double nh = n.x*hx + n.y*hy + n.z*hz, vh = -(d.x*hx + d.y*hy + d.z*hz);
+            if (nh > 0.0 && vh > 0.0) pdf += ps * (m.shininess + 1.0) / (2.0 * Math.PI) * Math.pow(nh, m.shininess) / (4.0 * vh);
+        }
+        return pdf;
+    }
+
+    private static double specularChance(Material m, Vec3 base) {
+        double diffuse = m.kd * luminance(base.x, base.y, base.z);
+        return m.ks + diffuse <= 0.0 ? 0.0 : m.ks / (m.ks + diffuse);
+    }
+
+    private static double fresnel(Vec3 V, Vec3 N, double n2) {
+        double cosi = clamp(N.dot(V), -1.0, 1.0);
+        double etai = 1.0, etat = n2;
+        if (cosi > 0) { double tmp = etai; etai = etat; etat = tmp; }
+        double sint = etai / etat * Math.sqrt(Math.max(0.0, 1 - cosi * cosi));
+        if (sint >= 1.0) return 1.0;
+        double cost = Math.sqrt(Math.max(0.0, 1 - sint * sint));
+        cosi = Math.abs(cosi);
+        double Rs = ((etat * cosi) - (etai * cost)) / ((etat * cosi) + (etai * cost));
+        double Rp = ((etai * cosi) - (etat * cost)) / ((etai * cosi) + (etat * cost));
+        return (Rs*Rs + Rp*Rp) * 0.5;
+    }
+
+    private static Vec3 reflect(Vec3 I, Vec3 N, Vec3 out) { double k = 2.0 * I.dot(N); return out.set(I.x - N.x*k, I.y - N.y*k, I.z - N.z*k).normalizeLocal(); }
+    // Writes the refracted direction into out, or returns null on total internal reflection
+    private static Vec3 refract(Vec3 I, Vec3 N, double n1, double n2, Vec3 out) {
+        double eta = n1 / n2;
+        double cosi = -Math.max(-1.0, Math.min(1.0, I.dot(N)));
+        double k = 1.0 - eta * eta * (1.0 - cosi * cosi);
+        if (k < 0) return null;
+        double s = eta * cosi - Math.sqrt(k);
+        return out.set(I.x*eta + N.x*s, I.y*eta + N.y*s, I.z*eta + N.z*s).normalizeLocal();
+    }
+    private static double clamp(double v, double a, double b) { return Math.max(a, Math.min(b, v)); }
+    private void setupScene() {
+        camera.eye = new Vec3(0, 1.2, 6.5);
+        camera.lookAt = new Vec3(0, 1.0, 0);
         camera.up = new Vec3(0, 1, 0);
         camera.fov = 55f;
         yaw = 0.0; // face towards -Z
@@ -559,20 +2999,16 @@ public class Lab8 {
         Material floorMat = new Material(new Vec3(1.0, 1.0, 1.0));
         floorMat.kd = 0.9; floorMat.ks = 0.1; floorMat.shininess = 32; floorMat.reflectivity = 0.15;
 
-        scene.shapes.add(new Plane(new Vec3(0, 1, 0), 0.0, floorMat) {
-            @Override public Vec3 albedoAt(Vec3 p) {
-                int cx = (int)Math.floor(p.x * 0.5);
-                int cz = (int)Math.floor(p.z * 0.5);
-                boolean black = ((cx + cz) & 1) == 0;
-                double v = black ? 0.12 : 0.85;
-                return new Vec3(v, v, v);
-            }
-        });
-        scene.shapes.add(new Sphere(new Vec3(-1.2, 1.0, 0.0), 1.0, matteRed));
+        scene.shapes.add(new Plane(new Vec3(0, 1, 0), 0.0, floorMat));
+        Sphere bouncing = new Sphere(new Vec3(-1.2, 1.0, 0.0), 1.0, matteRed);
+        scene.shapes.add(bouncing);
         scene.shapes.add(new Sphere(new Vec3(1.2, 1.0, 0.6), 1.0, glass));
         scene.shapes.add(new Box(new Vec3(-2.7, 0.5, 2.0), new Vec3(-1.7, 1.5, 3.0), matteGreen));
         scene.shapes.add(new Cylinder(new Vec3(2.8, 0.0, -0.3), 0.5, 0.0, 1.5, glossyMirror));
-        scene.shapes.add(new Cone(new Vec3(0.0, 0.0, -2.2), 0.8, 1.6, matteGreen));
+        Cone circling = new Cone(new Vec3(0.0, 0.0, -2.2), 0.8, 1.6, matteGreen);
+        scene.shapes.add(circling);
+        scene.animate(bouncing, t -> bouncing.c.y = 1.0 + 0.4 * Math.abs(Math.sin(1.5 * t)));
+        scene.animate(circling, t -> { circling.c.x = 0.5 * Math.sin(0.8 * t); circling.c.z = -2.2 - 0.5 * (1.0 - Math.cos(0.8 * t)); });
 
         Light l = new Light(new Vec3(3.0, 5.0, 5.0), new Vec3(1.0, 1.0, 1.0));
         l.radius = 0.6; l.constant = 1.0; l.linear = 0.09; l.quadratic = 0.032;
@@ -580,30 +3016,476 @@ public class Lab8 {
         Light l2 = new Light(new Vec3(-5.0, 6.0, 4.0), new Vec3(0.7, 0.8, 1.0));
         l2.radius = 0.0; l2.constant = 1.0; l2.linear = 0.14; l2.quadratic = 0.07;
         scene.lights.add(l2);
+        scene.build();
+    }
+
+    // --scene highlights or the L key: polished, non-mirroring spheres from broad to very tight highlights under one large area
+    // light, so direct specular lighting is the whole image. This is where BRDF samples pay and MIS engages.
+    private void setupHighlightScene() {
+        camera.eye = new Vec3(0, 1.6, 6.0);
+        camera.lookAt = new Vec3(0, 0.7, 0);
+        camera.up = new Vec3(0, 1, 0);
+        camera.fov = 55f;
+        yaw = 0.0;
+        pitch = 0.0;
+
+        Material floorMat = new Material(new Vec3(0.25, 0.25, 0.25));
+        floorMat.kd = 0.9; floorMat.ks = 0.0;
+        scene.shapes.add(new Plane(new Vec3(0, 1, 0), 0.0, floorMat));
+        double[] shininess = {50, 200, 800, 3000, 10000};
+        for (int i = 0; i < shininess.length; i++) {
+            Material polished = new Material(new Vec3(0.1, 0.1, 0.12));
+            polished.kd = 0.1; polished.ks = 0.9; polished.shininess = shininess[i];
+            scene.shapes.add(new Sphere(new Vec3(-3.0 + 1.5 * i, 0.6, 0.0), 0.6, polished));
+        }
+
+        Light l = new Light(new Vec3(0.0, 4.0, 3.0), new Vec3(1.0, 1.0, 1.0));
+        l.radius = 1.5; l.constant = 1.0; l.linear = 0.0; l.quadratic = 0.02;
+        scene.lights.add(l);
+        scene.build();
     }
 
-    private void renderImage() {
-        if (pixelBuffer == null) return;
-        pixelBuffer.clear();
+    // Adds the --mesh model in front of the spheres and a forest of instances of it (or of a bush mesh without
+    // --mesh) behind them. Every copy shares the one mesh and its BVH.
+    private void addMeshes(String meshFile, int forest) throws IOException {
+        TriangleMesh model = null;
+        if (meshFile != null) {
+            Material clay = new Material(new Vec3(0.75, 0.7, 0.65));
+            clay.kd = 0.85; clay.ks = 0.15; clay.shininess = 24;
+            model = loadModel(java.nio.file.Paths.get(meshFile), clay);
+            scene.shapes.add(Instance.place(model, 0, 0, 2.3, 0, 1));
+        }
+        if (forest > 0) {
+            TriangleMesh tree = model;
+            if (tree == null) {
+                Material leaves = new Material(new Vec3(0.25, 0.5, 0.2));
+                leaves.kd = 0.9; leaves.ks = 0.05; leaves.shininess = 8;
+                tree = TriangleMesh.sphere(new Vec3(0, 0.7, 0), 0.7, 24, 48, leaves);
+            }
+            // Constant density: the square grows with the count, starting 6 units behind the origin
+            double side = 1.5 * Math.sqrt(forest);
+            java.util.Random rng = new java.util.Random(7);
+            for (int i = 0; i < forest; i++) {
+                double x = side * (rng.nextDouble() - 0.5), z = -6.0 - side * rng.nextDouble();
+                scene.shapes.add(Instance.place(tree, x, 0, z, 2.0 * Math.PI * rng.nextDouble(), 0.5 + rng.nextDouble()));
+            }
+            System.out.printf("Forest: %d instances of %d triangles%n", forest, tree.triangleCount);
+        }
+        scene.build();
+    }
+
+    // Loads an OBJ model and scales it to fit a 1.4 unit cube standing on the floor at the origin
+    private static TriangleMesh loadModel(java.nio.file.Path path, Material m) throws IOException {
+        long t0 = System.nanoTime();
+        TriangleMesh mesh = TriangleMesh.loadObj(path, m);
+        Aabb b = mesh.bounds();
+        if (b == null) throw new IOException(path + " has no triangles");
+        double size = Math.max(b.max.x - b.min.x, Math.max(b.max.y - b.min.y, b.max.z - b.min.z));
+        double scale = size > 0 ? 1.4 / size : 1.0;
+        mesh.scaleAndMove(scale, new Vec3(-0.5 * (b.min.x + b.max.x) * scale, -b.min.y * scale, -0.5 * (b.min.z + b.max.z) * scale));
+        System.out.printf("Loaded %s: %d triangles, %d vertices in %.0f ms%n", path, mesh.triangleCount, mesh.positions.length / 3, (System.nanoTime() - t0) / 1e6);
+        return mesh;
+    }
+
+    // Renders pass number accumPasses into the accumulation buffer and shows the average of all passes so far.
+    // In adaptive mode every pass after the first only adds samples where planAdaptivePass() asks for them.
+    private void renderImage(ForkJoinPool pool) {
+        RenderPassEvent event = new RenderPassEvent();
+        event.begin();
+        long[] before = stats.totals();
+        long t0 = System.nanoTime();
+        int pass = accumPasses;
+        PassKind kind = renderPass(pool);
+        if (kind == null) return;
+        stats.add(RenderStats.PASS_NANOS, System.nanoTime() - t0);
+        stats.add(RenderStats.PASSES, 1);
+        if (event.shouldCommit()) {
+            long[] after = stats.totals();
+            event.pass = pass; event.kind = kind.name(); event.width = imgWidth; event.height = imgHeight;
+            event.primaryRays = after[RenderStats.PRIMARY] - before[RenderStats.PRIMARY];
+            event.secondaryRays = after[RenderStats.SECONDARY] - before[RenderStats.SECONDARY];
+            event.shadowRays = after[RenderStats.SHADOW] - before[RenderStats.SHADOW];
+            event.nodeVisits = after[RenderStats.NODES] - before[RenderStats.NODES];
+            event.shapeTests = after[RenderStats.TESTS] - before[RenderStats.TESTS];
+            event.allocated = after[RenderStats.ALLOCATED] - before[RenderStats.ALLOCATED];
+            event.cancelled = renderCancelled();
+            event.commit();
+        }
+    }
+
+    // The pass itself; returns its kind, or null when adaptive sampling found nothing left to do
+    private PassKind renderPass(ForkJoinPool pool) {
         camera.update(imgWidth, imgHeight);
-        java.util.Random rng = new java.util.Random(1337);
-        int spp = 1;
-        for (int y = 0; y < imgHeight; y++) {
-            for (int x = 0; x < imgWidth; x++) {
-                Vec3 col = new Vec3(0,0,0);
-                for (int s = 0; s < spp; s++) {
-                    double u = (x + 0.5) / (double) imgWidth;
-                    double v = (y + 0.5) / (double) imgHeight;
-                    Ray ray = camera.generateRay(u, v);
-                    col = col.add(trace(ray, 0, rng));
-                }
-                col = col.div(spp);
-                col = new Vec3(Math.pow(clamp(col.x, 0, 1), 1/2.2),
-                               Math.pow(clamp(col.y, 0, 1), 1/2.2),
-                               Math.pow(clamp(col.z, 0, 1), 1/2.2));
-                pixelBuffer.put((byte)(int)(col.x*255)).put((byte)(int)(col.y*255)).put((byte)(int)(col.z*255)).put((byte)255);
-            }
-        }
-        pixelBuffer.flip();
+        int pixels = imgWidth * imgHeight;
+        if (accumBuffer == null || accumBuffer.length != pixels * 3) {
+            accumBuffer = new float[pixels * 3];
+            sampleCounts = new int[pixels];
+            lumSquares = new float[pixels];
+            extraSamples = new byte[pixels];
+            displayLum = new float[pixels];
+            refineOrder = new long[pixels];
+            denoiser = new Denoiser(imgWidth, imgHeight);
+            reprojection = new Reprojection(imgWidth, imgHeight);
+            costMap = new CostMap(imgWidth, imgHeight);
+            accumPasses = 0;
+        }
+        if (accumPasses == 0) { totalSamples = 0; refinementDone = false; if (heatmap) costMap.clear(); }
+        PassKind kind = PassKind.FULL;
+        long t0 = System.nanoTime();
+        if (accumPasses == 0 && reprojectNext && reprojectHistory(pool)) {
+            kind = PassKind.REPROJECTED;
+            stats.add(RenderStats.REPROJECT_NANOS, System.nanoTime() - t0);
+        } else if (adaptive && accumPasses > 0) {
+            kind = PassKind.ADAPTIVE;
+            boolean planned = planAdaptivePass();
+            stats.add(RenderStats.PLAN_NANOS, System.nanoTime() - t0);
+            if (!planned) { refinementDone = true; return null; }
+        }
+        reprojectNext = false;
+        int tilesX = (imgWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (imgHeight + TILE_SIZE - 1) / TILE_SIZE;
+        if (kind == PassKind.FULL && accumPasses == 0 && coarseToFine) {
+            // Every pixel still gets exactly one sample; the coarse levels just come first and cover the gaps
+            for (int step = COARSEST_STEP; step >= 1 && !renderCancelled(); step /= 2) {
+                pool.invoke(new TileTask(0, tilesX * tilesY, tilesX, kind, step, step < COARSEST_STEP));
+            }
+        } else {
+            pool.invoke(new TileTask(0, tilesX * tilesY, tilesX, kind, 1, false));
+        }
+        if (renderCancelled()) {
+            // Some tiles hold the new pass and some do not: nothing here is a consistent frame any more
+            reprojection.camera = null;
+            return kind;
+        }
+        if (kind != PassKind.ADAPTIVE) totalSamples += pixels;
+        if (accumPasses == 0) reprojection.camera = camera.snapshot();
+        accumPasses++;
+        return kind;
+    }
+
+    private boolean renderCancelled() { return activeJob != null && activeJob.cancelled; }
+
+    // Splits a range of tile indices in half until a single tile is left; idle workers steal the other halves
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int from, to, tilesX;
+        final PassKind kind;
+        final int step;            // FULL passes: trace every step-th pixel in x and y
+        final boolean coarserDone; // the pixels of the 2 * step grid are already traced
+        TileTask(int from, int to, int tilesX, PassKind kind, int step, boolean coarserDone) {
+            this.from = from; this.to = to; this.tilesX = tilesX; this.kind = kind; this.step = step; this.coarserDone = coarserDone;
+        }
+        @Override protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TileTask(from, mid, tilesX, kind, step, coarserDone), new TileTask(mid, to, tilesX, kind, step, coarserDone));
+                return;
+            }
+            int x0 = (from % tilesX) * TILE_SIZE;
+            int y0 = (from / tilesX) * TILE_SIZE;
+            TraceContext ctx = TRACE_CONTEXT.get();
+            ctx.useSampler(samplerKind);
+            int x1 = Math.min(x0 + TILE_SIZE, imgWidth), y1 = Math.min(y0 + TILE_SIZE, imgHeight);
+            if (renderCancelled()) return;
+            long bytes0 = threadAllocatedBytes();
+            switch (kind) {
+                case ADAPTIVE: renderTileAdaptive(x0, y0, x1, y1, ctx); break;
+                case REPROJECTED: renderTileFresh(x0, y0, x1, y1, ctx); break;
+                default: renderTile(x0, y0, x1, y1, step, coarserDone, ctx);
+            }
+            ctx.allocated += threadAllocatedBytes() - bytes0;
+            stats.addTile(ctx);
+            framePainted();
+        }
+    }
+
+    // Traces the pixels of the tile on the grid of every step-th column and row, minus those on the coarser grid when
+    // coarserDone. With step > 1 each traced pixel also paints its step x step block for display until the finer
+    // levels overwrite it. Tiles are a multiple of COARSEST_STEP wide, so every level lines up across tiles.
+    private void renderTile(int x0, int y0, int x1, int y1, int step, boolean coarserDone, TraceContext ctx) {
+        boolean first = accumPasses == 0;
+        Vec3 c = ctx.color;
+        float[] cost = heatmap ? costMap.nanos : null;
+        long mark = cost != null ? System.nanoTime() : 0;
+        for (int y = y0; y < y1; y += step) {
+            // On rows of the coarser grid only the columns in between are left
+            int start = x0, stride = step;
+            if (coarserDone && y % (2 * step) == 0) { start = x0 + step; stride = 2 * step; }
+            for (int x = start; x < x1; x += stride) {
+                generatePrimary(x, y, first ? 0 : sampleCounts[y * imgWidth + x], ctx.sampler, ctx.primary);
+                radiance(ctx.primary, first ? 0 : sampleCounts[y * imgWidth + x], ctx, c);
+                denoiser.storeFeatures(y * imgWidth + x, ctx.frame(0).hit, first);
+                storePixel(x, y, c, first);
+                if (cost != null) mark = addCost(cost, y * imgWidth + x, mark);
+                if (step > 1) { fillBlock(x, y, step); if (cost != null) mark = System.nanoTime(); } // display only
+            }
+        }
+    }
+
+    // Adds the time since mark to pixel p and returns the new mark
+    private static long addCost(float[] cost, int p, long mark) {
+        long now = System.nanoTime();
+        cost[p] += now - mark;
+        return now;
+    }
+
+    // Copies the displayed colour of (x, y) over the size x size block it anchors; the accumulation is untouched
+    private void fillBlock(int x, int y, int size) {
+        int value = pixelInts.get(y * imgWidth + x);
+        int x1 = Math.min(x + size, imgWidth), y1 = Math.min(y + size, imgHeight);
+        for (int by = y; by < y1; by++) {
+            for (int bx = x; bx < x1; bx++) pixelInts.put(by * imgWidth + bx, value);
+        }
+    }
+
+    // Sample number index of pixel (x, y): the first sample goes through the pixel centre, later ones are jittered
+    private void generatePrimary(int x, int y, long index, Sampler sampler, Ray out) {
+        sampler.startPixel(renderSeed, x, y);
+        double jx = index == 0 ? 0.5 : sampler.get(0, index);
+        double jy = index == 0 ? 0.5 : sampler.get(1, index);
+        camera.generateRay((x + jx) / (double) imgWidth, (y + jy) / (double) imgHeight, out);
+    }
+
+    // Replaces the displayed image with a filtered version of the accumulated one; the accumulation is untouched
+    private void denoiseImage(ForkJoinPool pool) {
+        if (!denoise || accumPasses == 0) return;
+        DenoiseEvent event = new DenoiseEvent();
+        event.begin();
+        long t0 = System.nanoTime();
+        denoiser.run(pool, accumBuffer, sampleCounts, lumSquares, pixelInts);
+        long nanos = System.nanoTime() - t0;
+        stats.add(RenderStats.DENOISE_NANOS, nanos);
+        denoiseNanosPerPixel = (double) nanos / (imgWidth * imgHeight);
+        if (event.shouldCommit()) {
+            event.width = imgWidth; event.height = imgHeight; event.pass = accumPasses;
+            event.commit();
+        }
+    }
+
+    // Pass 0 after reprojectHistory(): traces the centre sample of the pixels it marked fresh, one ray at a time
+    private void renderTileFresh(int x0, int y0, int x1, int y1, TraceContext ctx) {
+        Vec3 c = ctx.color;
+        boolean[] fresh = reprojection.fresh;
+        float[] cost = heatmap ? costMap.nanos : null;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int p = y * imgWidth + x;
+                if (!fresh[p]) continue;
+                long mark = cost != null ? System.nanoTime() : 0;
+                generatePrimary(x, y, 0, ctx.sampler, ctx.primary);
+                radiance(ctx.primary, 0, ctx, c);
+                denoiser.storeFeatures(p, ctx.frame(0).hit, true);
+                storePixel(x, y, c, true);
+                if (cost != null) addCost(cost, p, mark);
+            }
+        }
+    }
+
+    // Warps the previous frame into the current camera. Every pixel whose samples all hit diffuse surfaces becomes
+    // a world point (through its centre, at its mean hit distance) that is projected into the new view, nearest
+    // point per pixel winning. Pixels that receive one keep its colour as their first sample; pixels that receive
+    // none (disocclusions, background, silhouettes, mirrors) and a rotating subset of the rest are left for
+    // renderTileFresh. Returns false when there is no usable history.
+    //
+    // All three steps run in row bands on the pool. The warp scatters, so two bands can hit the same new pixel:
+    // each point packs its distance above its old pixel index and the pixel keeps the smallest with a CAS, which
+    // for positive floats is the nearest point, ties going to the lowest index as in a serial scan.
+    private boolean reprojectHistory(ForkJoinPool pool) {
+        Reprojection r = reprojection;
+        Camera prev = r.camera;
+        if (prev == null) return false;
+        int w = imgWidth, h = imgHeight;
+        AtomicLongArray nearest = r.nearest;
+        // The accumulation still holds the previous frame: keep what the warp needs before it is overwritten
+        pool.invoke(new RowTask(0, h, y -> {
+            for (int p = y * w, end = p + w; p < end; p++) {
+                int n = sampleCounts[p];
+                r.color[p*3] = accumBuffer[p*3] / n; r.color[p*3 + 1] = accumBuffer[p*3 + 1] / n; r.color[p*3 + 2] = accumBuffer[p*3 + 2] / n;
+                r.depth[p] = denoiser.historyFeatures(p, n, r.albedo, r.normal);
+                nearest.set(p, Reprojection.NONE);
+            }
+        }));
+        Camera cam = camera;
+        pool.invoke(new RowTask(0, h, y -> {
+            for (int x = 0; x < w; x++) {
+                int p = y * w + x;
+                float t = r.depth[p];
+                if (t < 0f) continue;
+                double a = (2 * (x + 0.5) / w - 1) * prev.halfWidth, b = (1 - 2 * (y + 0.5) / h) * prev.halfHeight;
+                double dx = prev.u.x*a + prev.v.x*b - prev.w.x, dy = prev.u.y*a + prev.v.y*b - prev.w.y, dz = prev.u.z*a + prev.v.z*b - prev.w.z;
+                double dl = t / Math.sqrt(dx*dx + dy*dy + dz*dz);
+                double px = prev.eye.x + dx*dl - cam.eye.x, py = prev.eye.y + dy*dl - cam.eye.y, pz = prev.eye.z + dz*dl - cam.eye.z;
+                double depth = -(px*cam.w.x + py*cam.w.y + pz*cam.w.z);
+                if (depth <= 1e-6) continue;
+                double sx = ((px*cam.u.x + py*cam.u.y + pz*cam.u.z) / depth / cam.halfWidth + 1) * 0.5;
+                double sy = (1 - (px*cam.v.x + py*cam.v.y + pz*cam.v.z) / depth / cam.halfHeight) * 0.5;
+                if (!(sx >= 0 && sx < 1 && sy >= 0 && sy < 1)) continue;
+                int q = (int) (sy * h) * w + (int) (sx * w);
+                float dist = (float) Math.sqrt(px*px + py*py + pz*pz);
+                if (!(dist < Float.POSITIVE_INFINITY)) continue;
+                long packed = (long) Float.floatToIntBits(dist) << 32 | p;
+                long seen = nearest.get(q);
+                while (packed < seen && !nearest.weakCompareAndSetVolatile(q, seen, packed)) seen = nearest.get(q);
+            }
+        }));
+        long frame = ++r.frame;
+        pool.invoke(new RowTask(0, h, y -> {
+            Vec3 c = new Vec3(0, 0, 0);
+            for (int x = 0; x < w; x++) {
+                int q = y * w + x;
+                long packed = nearest.get(q);
+                r.fresh[q] = packed == Reprojection.NONE || (pixelHash(renderSeed, x, y) + frame) % REFRESH_PERIOD == 0;
+                if (r.fresh[q]) continue;
+                int p = (int) packed;
+                storePixel(x, y, c.set(r.color[p*3], r.color[p*3 + 1], r.color[p*3 + 2]), true);
+                denoiser.setFeatures(q, r.albedo, r.normal, p, Float.intBitsToFloat((int) (packed >>> 32)));
+            }
+        }));
+        return true;
+    }
+
+    // Traces the extra samples planned for each pixel of the tile, one ray at a time
+    private void renderTileAdaptive(int x0, int y0, int x1, int y1, TraceContext ctx) {
+        Vec3 c = ctx.color;
+        float[] cost = heatmap ? costMap.nanos : null;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int p = y * imgWidth + x;
+                if (extraSamples[p] == 0) continue;
+                long mark = cost != null ? System.nanoTime() : 0;
+                for (int k = extraSamples[p]; k > 0; k--) {
+                    int index = sampleCounts[p];
+                    generatePrimary(x, y, index, ctx.sampler, ctx.primary);
+                    radiance(ctx.primary, index, ctx, c);
+                    denoiser.storeFeatures(p, ctx.frame(0).hit, false);
+                    storePixel(x, y, c, false);
+                }
+                if (cost != null) addCost(cost, p, mark);
+            }
+        }
+    }
+
+    // Adds one sample of linear radiance to the pixel's sums and writes the running average for display;
+    // first restarts the pixel instead of adding to it
+    private void storePixel(int x, int y, Vec3 c, boolean first) {
+        float[] accum = accumBuffer;
+        double r = c.x, g = c.y, b = c.z;
+        int p = y * imgWidth + x;
+        int a = p * 3;
+        double lum = luminance(r, g, b);
+        int n;
+        if (first) {
+            n = 1;
+            lumSquares[p] = (float) (lum * lum);
+        } else {
+            n = sampleCounts[p] + 1;
+            r += accum[a]; g += accum[a + 1]; b += accum[a + 2];
+            lumSquares[p] += (float) (lum * lum);
+        }
+        accum[a] = (float) r; accum[a + 1] = (float) g; accum[a + 2] = (float) b;
+        sampleCounts[p] = n;
+        pixelInts.put(p, packRgba(r / n, g / n, b / n));
+    }
+
+    // Gamma-encoded, opaque RGBA8 of a linear colour, in the byte order of pixelInts
+    static int packRgba(double r, double g, double b) {
+        int ri = (int) (Math.pow(clamp(r, 0, 1), 1/2.2) * 255);
+        int gi = (int) (Math.pow(clamp(g, 0, 1), 1/2.2) * 255);
+        int bi = (int) (Math.pow(clamp(b, 0, 1), 1/2.2) * 255);
+        return 0xFF000000 | bi << 16 | gi << 8 | ri;
+    }
+
+    private static double luminance(double r, double g, double b) { return 0.2126 * r + 0.7152 * g + 0.0722 * b; }
+
+    // Decides how many extra samples each pixel gets in the next adaptive pass. The error estimate is the relative
+    // standard error of the pixel's mean luminance, or at least the largest display-space step to a 4-neighbour divided
+    // by the sample count (the only signal a pixel with one sample has). Pixels above adaptiveThreshold get up to
+    // MAX_EXTRA_SAMPLES more; when that exceeds the remaining budget the largest errors win. Returns false when
+    // nothing is left to do.
+    private boolean planAdaptivePass() {
+        int w = imgWidth, h = imgHeight, pixels = w * h;
+        long remaining = (long) (adaptiveBudget * pixels) - totalSamples;
+        java.util.Arrays.fill(extraSamples, (byte) 0);
+        if (remaining <= 0) return false;
+        for (int p = 0; p < pixels; p++) {
+            int a = p * 3, n = sampleCounts[p];
+            displayLum[p] = (float) Math.pow(clamp(luminance(accumBuffer[a], accumBuffer[a + 1], accumBuffer[a + 2]) / n, 0, 1), 1/2.2);
+        }
+        int count = 0;
+        long requested = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int p = y * w + x, a = p * 3, n = sampleCounts[p];
+                float d = displayLum[p];
+                double contrast = 0;
+                if (x > 0) contrast = Math.max(contrast, Math.abs(d - displayLum[p - 1]));
+                if (x < w - 1) contrast = Math.max(contrast, Math.abs(d - displayLum[p + 1]));
+                if (y > 0) contrast = Math.max(contrast, Math.abs(d - displayLum[p - w]));
+                if (y < h - 1) contrast = Math.max(contrast, Math.abs(d - displayLum[p + w]));
+                double err = contrast / n;
+                if (n > 1) {
+                    double mean = luminance(accumBuffer[a], accumBuffer[a + 1], accumBuffer[a + 2]) / n;
+                    double variance = Math.max(0.0, lumSquares[p] / n - mean * mean);
+                    err = Math.max(err, Math.sqrt(variance / n) / (mean + 0.05));
+                }
+                if (err <= adaptiveThreshold) continue;
+                int extra = (int) Math.min(MAX_EXTRA_SAMPLES, Math.ceil(err / adaptiveThreshold));
+                extraSamples[p] = (byte) extra;
+                requested += extra;
+                refineOrder[count++] = (long) Float.floatToIntBits((float) err) << 32 | p;
+            }
+        }
+        if (count == 0) return false;
+        if (requested > remaining) {
+            // Positive float bits sort like the floats themselves, so this ranks pixels by error
+            java.util.Arrays.sort(refineOrder, 0, count);
+            long left = remaining;
+            for (int i = count - 1; i >= 0; i--) {
+                int p = (int) refineOrder[i];
+                int extra = (int) Math.min(extraSamples[p], left);
+                extraSamples[p] = (byte) extra;
+                left -= extra;
+            }
+            requested = remaining;
+        }
+        totalSamples += requested;
+        return true;
+    }
+
+    // Renders the current view with 1, 2, 4, ... threads up to the core count and prints the speedup over one thread
+    private void reportScaling() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        java.util.List<Integer> counts = new java.util.ArrayList<>();
+        for (int n = 1; n < cores; n *= 2) counts.add(n);
+        counts.add(cores);
+        double baseMs = 0.0;
+        System.out.printf("Render scaling at %dx%d:%n", imgWidth, imgHeight);
+        if (pixelBuffer == null || pixelBuffer.capacity() != imgWidth * imgHeight * 4) attachPixels(BufferUtils.createByteBuffer(imgWidth * imgHeight * 4));
+        for (int n : counts) {
+            ForkJoinPool pool = new ForkJoinPool(n);
+            try {
+                accumPasses = 0;
+                renderImage(pool); // warm-up
+                int runs = 3;
+                long bytes0 = stats.totals()[RenderStats.ALLOCATED];
+                long t0 = System.nanoTime();
+                for (int i = 0; i < runs; i++) { accumPasses = 0; renderImage(pool); }
+                double ms = (System.nanoTime() - t0) / 1e6 / runs;
+                double allocKb = (stats.totals()[RenderStats.ALLOCATED] - bytes0) / 1024.0 / runs;
+                if (n == 1) baseMs = ms;
+                double speedup = baseMs / ms;
+                System.out.printf("  %2d threads: %8.1f ms  speedup %5.2fx  efficiency %3.0f%%  alloc %8.1f KB/frame%n", n, ms, speedup, 100.0 * speedup / n, allocKb);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Bytes allocated so far by the calling thread; HotSpot only, 0 elsewhere. Only ever differenced on one thread, so
+    // threads that come and go between readings cannot skew the result.
+    private static final java.lang.management.ThreadMXBean THREADS = java.lang.management.ManagementFactory.getThreadMXBean();
+    private static long threadAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return 0;
+        return Math.max(0, ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes());
     }
 }